@@ -0,0 +1,377 @@
+package waveimport;
+
+import com.google.walkaround.proto.RobotSearchDigest;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+
+/**
+ * Search over an export directory indexed by {@link ArchiveIndexer}, without
+ * the original wave server.
+ *
+ * Queries use the syntax of {@link RobotApi#search}: {@code after:yyyy/mm/dd}
+ * and {@code before:yyyy/mm/dd} limit the last modification time (UTC),
+ * {@code with:address} requires a participant, and other words must occur in
+ * the title, snippet or text of the wave. Results are the newest first.
+ *
+ * @author A. Kaplanov
+ */
+public class ArchiveIndex {
+
+    static final String MANIFEST_FILE = "manifest";
+    private static final String BACKUP_SUFFIX = ".bak";
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private final List<IndexSegment> segments = new ArrayList<IndexSegment>();
+
+    /** Indexed export files and the live segments. */
+    static final class Manifest {
+
+        final int generation;
+        final List<String> segments;
+        // Current deletions file of each segment
+        final Map<String, String> deletedFiles;
+        final Map<String, ArchiveIndexer.FileEntry> files;
+
+        Manifest(int generation, List<String> segments, Map<String, String> deletedFiles,
+                Map<String, ArchiveIndexer.FileEntry> files) {
+            this.generation = generation;
+            this.segments = segments;
+            this.deletedFiles = deletedFiles;
+            this.files = files;
+        }
+
+        /**
+         * Reads the manifest of the index, with the indexed files only if
+         * {@code withFiles}. Returns an empty manifest for a new index.
+         */
+        static Manifest read(File indexDir, boolean withFiles) throws IOException {
+            int generation = 0;
+            List<String> segments = new ArrayList<String>();
+            Map<String, String> deleted_files = new HashMap<String, String>();
+            Map<String, ArchiveIndexer.FileEntry> files = new HashMap<String, ArchiveIndexer.FileEntry>();
+            File file = new File(indexDir, MANIFEST_FILE);
+            if (!file.exists()) {
+                // Replacement interrupted where renaming over the manifest fails
+                file = new File(indexDir, MANIFEST_FILE + BACKUP_SUFFIX);
+            }
+            if (!file.exists()) {
+                return new Manifest(generation, segments, deleted_files, files);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf8"));
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    StringTokenizer st = new StringTokenizer(line, " ");
+                    String type = st.nextToken();
+                    if (type.equals("generation")) {
+                        generation = Integer.parseInt(st.nextToken());
+                    } else if (type.equals("segment")) {
+                        String segment = st.nextToken();
+                        String deleted = st.nextToken();
+                        segments.add(segment);
+                        if (!deleted.equals("-")) {
+                            deleted_files.put(segment, deleted);
+                        }
+                    } else if (type.equals("file")) {
+                        if (!withFiles) {
+                            break;
+                        }
+                        long length = Long.parseLong(st.nextToken());
+                        long last_modified = Long.parseLong(st.nextToken());
+                        String segment = st.nextToken();
+                        int doc = Integer.parseInt(st.nextToken());
+                        String name = st.nextToken("\n").trim();
+                        files.put(name, new ArchiveIndexer.FileEntry(name, length, last_modified, segment, doc));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return new Manifest(generation, segments, deleted_files, files);
+        }
+
+        /** Replaces the manifest, which commits a build of the index. */
+        void write(File indexDir) throws IOException {
+            File file = new File(indexDir, MANIFEST_FILE);
+            File tmp = new File(indexDir, MANIFEST_FILE + ".tmp");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "utf8");
+            try {
+                writer.write("generation " + generation + "\n");
+                for (String segment : segments) {
+                    String deleted = deletedFiles.get(segment);
+                    writer.write("segment " + segment + " " + (deleted != null ? deleted : "-") + "\n");
+                }
+                for (ArchiveIndexer.FileEntry entry : files.values()) {
+                    writer.write("file " + entry.length + " " + entry.lastModified + " " + entry.segment
+                            + " " + entry.doc + " " + entry.name + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            // Atomic on POSIX file systems. Elsewhere the old manifest is kept
+            // as a backup, which read takes if the new one is not in place.
+            if (tmp.renameTo(file)) {
+                return;
+            }
+            File backup = new File(indexDir, MANIFEST_FILE + BACKUP_SUFFIX);
+            backup.delete();
+            if (file.exists() && !file.renameTo(backup) || !tmp.renameTo(file)) {
+                throw new IOException("Can't replace " + file + " with " + tmp);
+            }
+            backup.delete();
+        }
+
+        /**
+         * Removes segments and deletions files not named by the manifest, left
+         * by replaced generations or interrupted builds.
+         */
+        static void removeUnused(File indexDir) throws IOException {
+            Manifest manifest = read(indexDir, false);
+            File[] dirs = indexDir.listFiles();
+            if (dirs == null) {
+                return;
+            }
+            for (File dir : dirs) {
+                if (!dir.isDirectory() || !dir.getName().startsWith("seg-")) {
+                    continue;
+                }
+                boolean live = manifest.segments.contains(dir.getName());
+                String deleted = manifest.deletedFiles.get(dir.getName());
+                File[] files = dir.listFiles();
+                for (int i = 0; files != null && i < files.length; i++) {
+                    if (!live || files[i].getName().startsWith(IndexSegment.DELETED_FILE_PREFIX)
+                            && !files[i].getName().equals(deleted)) {
+                        files[i].delete();
+                    }
+                }
+                if (!live) {
+                    dir.delete();
+                }
+            }
+        }
+    }
+
+    /** Matching wave, ordered by modification time. */
+    private static final class Hit {
+
+        final long lastModified;
+        final IndexSegment segment;
+        final int doc;
+
+        Hit(long lastModified, IndexSegment segment, int doc) {
+            this.lastModified = lastModified;
+            this.segment = segment;
+            this.doc = doc;
+        }
+    }
+
+    private static final Comparator<Hit> OLDEST_FIRST = new Comparator<Hit>() {
+
+        @Override
+        public int compare(Hit h1, Hit h2) {
+            return h1.lastModified < h2.lastModified ? -1 : h1.lastModified == h2.lastModified ? 0 : 1;
+        }
+    };
+
+    public ArchiveIndex(File indexDir) throws IOException {
+        Manifest manifest = Manifest.read(indexDir, false);
+        for (String segment : manifest.segments) {
+            segments.add(new IndexSegment(new File(indexDir, segment), manifest.deletedFiles.get(segment)));
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2 && args.length != 4) {
+            System.err.println("Use: ArchiveIndex <IndexDir> <Query> [<StartIndex> <MaxResults>]");
+            return;
+        }
+        int start_index = args.length == 4 ? Integer.parseInt(args[2]) : 0;
+        int max_results = args.length == 4 ? Integer.parseInt(args[3]) : 100;
+        try {
+            ArchiveIndex index = new ArchiveIndex(new File(args[0]));
+            try {
+                long start = System.currentTimeMillis();
+                List<RobotSearchDigest> digests = index.search(args[1], start_index, max_results);
+                long time = System.currentTimeMillis() - start;
+                for (RobotSearchDigest digest : digests) {
+                    System.out.println(digest.getWaveId() + " " + digest.getTitle());
+                }
+                System.out.println(digests.size() + " waves in " + time + " ms");
+            } finally {
+                index.close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Finds waves matching the query, newest first, as
+     * {@link RobotApi#search} does.
+     */
+    public List<RobotSearchDigest> search(String query, int startIndex, int maxResults) throws IOException {
+        long after = Long.MIN_VALUE;
+        long before = Long.MAX_VALUE;
+        Set<String> terms = new LinkedHashSet<String>();
+        StringTokenizer st = new StringTokenizer(query, " \t");
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken();
+            String lower = token.toLowerCase();
+            if (lower.startsWith("after:")) {
+                after = parseDate(token.substring("after:".length()));
+            } else if (lower.startsWith("before:")) {
+                before = parseDate(token.substring("before:".length()));
+            } else if (lower.startsWith("with:")) {
+                terms.add(participantTerm(token.substring("with:".length())));
+            } else {
+                List<String> dropped = new ArrayList<String>();
+                tokenize(token, terms, dropped);
+                if (!dropped.isEmpty()) {
+                    // Ignoring them would widen the query, up to every wave.
+                    throw new IOException("Words of fewer than " + MIN_TERM_LENGTH + " or more than "
+                            + MAX_TERM_LENGTH + " characters are not indexed: " + dropped);
+                }
+            }
+        }
+        if (maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        int limit = startIndex + maxResults;
+        PriorityQueue<Hit> hits = new PriorityQueue<Hit>(Math.min(limit, 1024), OLDEST_FIRST);
+        for (IndexSegment segment : segments) {
+            int[] docs = match(segment, terms);
+            for (int i = 0; docs == null ? i < segment.getDocCount() : i < docs.length; i++) {
+                int doc = docs == null ? i : docs[i];
+                long last_modified = segment.getLastModified(doc);
+                if (last_modified < after || last_modified >= before || segment.isDeleted(doc)) {
+                    continue;
+                }
+                if (hits.size() < limit) {
+                    hits.add(new Hit(last_modified, segment, doc));
+                } else if (hits.peek().lastModified < last_modified) {
+                    hits.poll();
+                    hits.add(new Hit(last_modified, segment, doc));
+                }
+            }
+        }
+        List<Hit> sorted = new ArrayList<Hit>(hits);
+        Collections.sort(sorted, Collections.reverseOrder(OLDEST_FIRST));
+        List<RobotSearchDigest> digests = new ArrayList<RobotSearchDigest>();
+        for (int i = startIndex; i < sorted.size(); i++) {
+            digests.add(sorted.get(i).segment.getDigest(sorted.get(i).doc));
+        }
+        return digests;
+    }
+
+    public void close() throws IOException {
+        for (IndexSegment segment : segments) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Returns docs of the segment having all the terms, or null for all docs
+     * if there are no terms.
+     */
+    private static int[] match(IndexSegment segment, Collection<String> terms) throws IOException {
+        if (terms.isEmpty()) {
+            return null;
+        }
+        List<int[]> postings = new ArrayList<int[]>();
+        for (String term : terms) {
+            int[] docs = segment.getPostings(term);
+            if (docs.length == 0) {
+                return docs;
+            }
+            postings.add(docs);
+        }
+        // Intersect starting from the rarest term.
+        Collections.sort(postings, new Comparator<int[]>() {
+
+            @Override
+            public int compare(int[] p1, int[] p2) {
+                return p1.length - p2.length;
+            }
+        });
+        int[] result = postings.get(0);
+        for (int i = 1; i < postings.size() && result.length != 0; i++) {
+            int[] other = postings.get(i);
+            int[] next = new int[result.length];
+            int count = 0;
+            int from = 0;
+            for (int doc : result) {
+                int index = Arrays.binarySearch(other, from, other.length, doc);
+                if (index >= 0) {
+                    next[count++] = doc;
+                    from = index + 1;
+                } else {
+                    from = -index - 1;
+                }
+            }
+            result = Arrays.copyOf(next, count);
+        }
+        return result;
+    }
+
+    /** Adds lower case words of the text to the terms. */
+    static void tokenize(CharSequence text, Collection<String> terms) {
+        tokenize(text, terms, null);
+    }
+
+    /**
+     * Adds lower case words of the text to the terms, and the words which
+     * are too short or too long to be indexed to {@code dropped}, if not null.
+     */
+    private static void tokenize(CharSequence text, Collection<String> terms, Collection<String> dropped) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+                continue;
+            }
+            if (word.length() >= MIN_TERM_LENGTH && word.length() <= MAX_TERM_LENGTH) {
+                terms.add(word.toString());
+            } else if (word.length() != 0 && dropped != null) {
+                dropped.add(word.toString());
+            }
+            word.setLength(0);
+        }
+    }
+
+    /** Term of a participant, as for the {@code with:} query. */
+    static String participantTerm(String participant) {
+        return "with:" + participant.toLowerCase();
+    }
+
+    private static long parseDate(String date) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(date).getTime();
+        } catch (ParseException ex) {
+            throw new IOException("Bad date " + date + ", expected yyyy/mm/dd");
+        }
+    }
+}
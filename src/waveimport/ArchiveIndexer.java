@@ -0,0 +1,538 @@
+package waveimport;
+
+import com.google.walkaround.proto.Proto.ProtocolAppliedWaveletDelta;
+import com.google.walkaround.proto.Proto.ProtocolDocumentOperation;
+import com.google.walkaround.proto.Proto.ProtocolWaveletDelta;
+import com.google.walkaround.proto.Proto.ProtocolWaveletOperation;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Builds the {@link ArchiveIndex} of an export directory.
+ *
+ * Waves are read in parallel: the digest saved by WaveExport, if any, gives
+ * title, snippet, participants and modification time, and the exported
+ * deltas give participants and the text of the documents. Building is
+ * incremental, only waves with new or modified files are indexed, into new
+ * segments, and their earlier versions are marked deleted in old ones.
+ *
+ * The number of waves per segment is taken from the
+ * {@code waveimport.index.segmentSize} system property.
+ *
+ * @author A. Kaplanov
+ */
+public class ArchiveIndexer {
+
+    public static final String SEGMENT_SIZE_PROPERTY = "waveimport.index.segmentSize";
+    private static final int DEFAULT_SEGMENT_SIZE = 50000;
+    private static final int MAX_STORED_LENGTH = 1000;
+    private static final int SNIPPET_LENGTH = 200;
+
+    private final File exportDir;
+    private final File indexDir;
+    private final int threads;
+    private final int segmentSize;
+
+    /** Indexed state of an export file, a manifest line. */
+    static final class FileEntry {
+
+        final String name;
+        final long length;
+        final long lastModified;
+        final String segment;
+        final int doc;
+
+        FileEntry(String name, long length, long lastModified, String segment, int doc) {
+            this.name = name;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.segment = segment;
+            this.doc = doc;
+        }
+    }
+
+    /** Indexed content of a wave. */
+    private static final class WaveDoc {
+
+        String waveId;
+        // Why the wave can't be read, or null
+        String failure;
+        String title = "";
+        String snippet = "";
+        long lastModified = 0;
+        int blipCount = 0;
+        int unreadBlipCount = 0;
+        final Set<String> participants = new TreeSet<String>();
+        final Set<String> terms = new HashSet<String>();
+    }
+
+    public ArchiveIndexer(File exportDir, File indexDir, int threads) {
+        this.exportDir = exportDir;
+        this.indexDir = indexDir;
+        this.threads = threads;
+        this.segmentSize = Integer.getInteger(SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Use: ArchiveIndexer <ExportDir> <IndexDir> [<Threads>]");
+            return;
+        }
+        int threads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        try {
+            new ArchiveIndexer(new File(args[0]), new File(args[1]), threads).run();
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    public void run() throws IOException {
+        if (!indexDir.exists() && !indexDir.mkdirs()) {
+            throw new IOException("Can't create directory " + indexDir);
+        }
+        ArchiveIndex.Manifest manifest = ArchiveIndex.Manifest.read(indexDir, true);
+        // Export files by wave
+        Map<String, List<File>> waves = new TreeMap<String, List<File>>();
+        String[] names = exportDir.list();
+        if (names == null) {
+            throw new IOException("Can't list " + exportDir);
+        }
+        for (String name : names) {
+            int index = name.indexOf('#');
+            if (index == -1 || !(name.endsWith("#json") || name.endsWith("#digest"))) {
+                continue;
+            }
+            String wave_id = name.substring(0, index);
+            List<File> files = waves.get(wave_id);
+            if (files == null) {
+                files = new ArrayList<File>();
+                waves.put(wave_id, files);
+            }
+            files.add(new File(exportDir, name));
+        }
+        // Waves to index, and docs of their earlier versions
+        List<String> dirty = new ArrayList<String>();
+        Map<String, Set<Integer>> deletions = new HashMap<String, Set<Integer>>();
+        Map<String, FileEntry> files = new HashMap<String, FileEntry>(manifest.files);
+        Map<String, List<FileEntry>> old_entries = new HashMap<String, List<FileEntry>>();
+        for (FileEntry entry : manifest.files.values()) {
+            String wave_id = getWaveId(entry.name);
+            List<FileEntry> entries = old_entries.get(wave_id);
+            if (entries == null) {
+                entries = new ArrayList<FileEntry>();
+                old_entries.put(wave_id, entries);
+            }
+            entries.add(entry);
+        }
+        Set<String> seen = new HashSet<String>();
+        for (List<File> wave_files : waves.values()) {
+            for (File file : wave_files) {
+                seen.add(file.getName());
+            }
+        }
+        // Files removed from the export, their waves are indexed again or deleted.
+        Set<String> shrunk = new HashSet<String>();
+        for (FileEntry entry : manifest.files.values()) {
+            if (!seen.contains(entry.name)) {
+                files.remove(entry.name);
+                shrunk.add(getWaveId(entry.name));
+                if (!waves.containsKey(getWaveId(entry.name))) {
+                    addDeletion(deletions, entry);
+                }
+            }
+        }
+        for (Map.Entry<String, List<File>> wave : waves.entrySet()) {
+            boolean changed = shrunk.contains(wave.getKey());
+            for (File file : wave.getValue()) {
+                FileEntry entry = files.get(file.getName());
+                if (entry == null || entry.length != file.length() || entry.lastModified != file.lastModified()) {
+                    changed = true;
+                }
+            }
+            if (changed) {
+                dirty.add(wave.getKey());
+            }
+        }
+        System.out.println(dirty.size() + " of " + waves.size() + " waves to index");
+        int generation = manifest.generation + 1;
+        List<String> segments = new ArrayList<String>(manifest.segments);
+        Map<String, String> deleted_files = new HashMap<String, String>(manifest.deletedFiles);
+        indexWaves(dirty, waves, old_entries, segments, files, deletions);
+        // Deletions of a new generation, the old ones stay valid until the manifest is replaced.
+        for (Map.Entry<String, Set<Integer>> entry : deletions.entrySet()) {
+            String segment = entry.getKey();
+            if (!segments.contains(segment)) {
+                continue;
+            }
+            Set<Integer> docs = new TreeSet<Integer>(entry.getValue());
+            String old_file = deleted_files.get(segment);
+            if (old_file != null) {
+                for (int doc : IndexSegment.readDeleted(new File(new File(indexDir, segment), old_file))) {
+                    docs.add(doc);
+                }
+            }
+            String new_file = IndexSegment.DELETED_FILE_PREFIX + generation;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(new File(indexDir, segment), new_file))));
+            try {
+                out.writeInt(docs.size());
+                for (int doc : docs) {
+                    out.writeInt(doc);
+                }
+            } finally {
+                out.close();
+            }
+            deleted_files.put(segment, new_file);
+        }
+        new ArchiveIndex.Manifest(generation, segments, deleted_files, files).write(indexDir);
+        ArchiveIndex.Manifest.removeUnused(indexDir);
+        System.out.println("Index " + indexDir + " has " + segments.size() + " segments");
+    }
+
+    private static String getWaveId(String fileName) {
+        return fileName.substring(0, fileName.indexOf('#'));
+    }
+
+    private static void addDeletion(Map<String, Set<Integer>> deletions, FileEntry entry) {
+        Set<Integer> docs = deletions.get(entry.segment);
+        if (docs == null) {
+            docs = new HashSet<Integer>();
+            deletions.put(entry.segment, docs);
+        }
+        docs.add(entry.doc);
+    }
+
+    /**
+     * Reads the waves in parallel and writes them to new segments, recording
+     * their files in {@code files} and their earlier docs in
+     * {@code deletions}. Waves which can't be read keep their earlier docs
+     * and file entries, so they are found and tried again by the next build.
+     */
+    private void indexWaves(List<String> waveIds, final Map<String, List<File>> waves,
+            Map<String, List<FileEntry>> oldEntries, List<String> segments, Map<String, FileEntry> files,
+            Map<String, Set<Integer>> deletions) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CompletionService<WaveDoc> completion = new ExecutorCompletionService<WaveDoc>(executor);
+            int next = 0;
+            int pending = 0;
+            int failed = 0;
+            SegmentWriter writer = null;
+            while (next < waveIds.size() || pending != 0) {
+                // Bounds waves held in memory
+                while (next < waveIds.size() && pending < threads * 4) {
+                    final String wave_id = waveIds.get(next++);
+                    completion.submit(new Callable<WaveDoc>() {
+
+                        @Override
+                        public WaveDoc call() {
+                            try {
+                                return readWave(wave_id, waves.get(wave_id));
+                            } catch (Exception ex) {
+                                WaveDoc doc = new WaveDoc();
+                                doc.waveId = wave_id;
+                                doc.failure = ex.toString();
+                                return doc;
+                            }
+                        }
+                    });
+                    pending++;
+                }
+                WaveDoc doc;
+                try {
+                    doc = completion.take().get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ex);
+                } catch (ExecutionException ex) {
+                    throw new IOException(ex.getCause());
+                } finally {
+                    pending--;
+                }
+                if (doc.failure != null) {
+                    failed++;
+                    System.err.println("Can't index " + doc.waveId + ": " + doc.failure);
+                    for (File file : waves.get(doc.waveId)) {
+                        files.remove(file.getName());
+                    }
+                    if (oldEntries.containsKey(doc.waveId)) {
+                        for (FileEntry entry : oldEntries.get(doc.waveId)) {
+                            files.put(entry.name, entry);
+                        }
+                    }
+                    continue;
+                }
+                if (oldEntries.containsKey(doc.waveId)) {
+                    for (FileEntry entry : oldEntries.get(doc.waveId)) {
+                        addDeletion(deletions, entry);
+                    }
+                }
+                if (writer == null) {
+                    writer = new SegmentWriter(newSegmentDir(segments));
+                }
+                int doc_number = writer.add(doc);
+                for (File file : waves.get(doc.waveId)) {
+                    files.put(file.getName(), new FileEntry(file.getName(), file.length(), file.lastModified(),
+                            writer.getName(), doc_number));
+                }
+                if (writer.getDocCount() >= segmentSize) {
+                    writer.close();
+                    segments.add(writer.getName());
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                writer.close();
+                segments.add(writer.getName());
+            }
+            if (failed != 0) {
+                System.err.println(failed + " waves are not indexed");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private File newSegmentDir(List<String> segments) throws IOException {
+        int number = 0;
+        for (String segment : segments) {
+            number = Math.max(number, Integer.parseInt(segment.substring("seg-".length())));
+        }
+        File dir;
+        do {
+            dir = new File(indexDir, String.format("seg-%06d", ++number));
+        } while (dir.exists());
+        if (!dir.mkdirs()) {
+            throw new IOException("Can't create directory " + dir);
+        }
+        return dir;
+    }
+
+    /** Reads the digest and deltas of a wave. */
+    private static WaveDoc readWave(String waveId, List<File> files) throws IOException {
+        WaveDoc doc = new WaveDoc();
+        doc.waveId = waveId;
+        StringBuilder text = new StringBuilder();
+        boolean has_digest = false;
+        try {
+            for (File file : files) {
+                JSONObject json = new JSONObject(readFile(file));
+                if (file.getName().endsWith("#digest")) {
+                    has_digest = true;
+                    doc.title = json.optString("title");
+                    doc.snippet = json.optString("snippet");
+                    doc.lastModified = Math.max(doc.lastModified, json.optLong("lastModified"));
+                    doc.blipCount = json.optInt("blipCount");
+                    doc.unreadBlipCount = json.optInt("unreadBlipCount");
+                    JSONArray participants = json.optJSONArray("participants");
+                    for (int i = 0; participants != null && i < participants.length(); i++) {
+                        doc.participants.add(participants.getString(i));
+                    }
+                } else {
+                    readDeltas(json, doc, text);
+                }
+            }
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+        if (!has_digest) {
+            doc.snippet = text.substring(0, Math.min(text.length(), SNIPPET_LENGTH)).trim();
+        }
+        ArchiveIndex.tokenize(doc.title, doc.terms);
+        ArchiveIndex.tokenize(doc.snippet, doc.terms);
+        ArchiveIndex.tokenize(text, doc.terms);
+        for (String participant : doc.participants) {
+            doc.terms.add(ArchiveIndex.participantTerm(participant));
+        }
+        return doc;
+    }
+
+    /**
+     * Adds participants, modification time and inserted text of an exported
+     * wavelet. Text deleted later is indexed too.
+     */
+    private static void readDeltas(JSONObject exp, WaveDoc doc, StringBuilder text)
+            throws JSONException, IOException {
+        JSONArray raw_deltas = exp.getJSONObject("data").getJSONArray("rawDeltas");
+        Set<String> participants = new HashSet<String>();
+        for (int i = 0; i < raw_deltas.length(); i++) {
+            ProtocolAppliedWaveletDelta applied_delta =
+                    ProtocolAppliedWaveletDelta.parseFrom(Base64.decodeBase64(raw_deltas.getString(i)));
+            doc.lastModified = Math.max(doc.lastModified, applied_delta.getApplicationTimestamp());
+            ProtocolWaveletDelta delta = ProtocolWaveletDelta.parseFrom(applied_delta.getSignedOriginalDelta().getDelta());
+            for (ProtocolWaveletOperation op : delta.getOperationList()) {
+                if (op.hasAddParticipant()) {
+                    participants.add(op.getAddParticipant());
+                } else if (op.hasRemoveParticipant()) {
+                    participants.remove(op.getRemoveParticipant());
+                } else if (op.hasMutateDocument()) {
+                    for (ProtocolDocumentOperation.Component component
+                            : op.getMutateDocument().getDocumentOperation().getComponentList()) {
+                        if (component.hasCharacters()) {
+                            text.append(component.getCharacters());
+                        } else if (component.hasElementStart() || component.hasElementEnd()) {
+                            text.append(' ');
+                        }
+                    }
+                }
+            }
+        }
+        doc.participants.addAll(participants);
+    }
+
+    static String readFile(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "utf8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char buf[] = new char[8192];
+            for (int ret = reader.read(buf); ret != -1; ret = reader.read(buf)) {
+                sb.append(buf, 0, ret);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Writes the files of a new {@link IndexSegment}. */
+    private static final class SegmentWriter {
+
+        private final File dir;
+        private final DataOutputStream docs;
+        private final List<Long> docOffsets = new ArrayList<Long>();
+        private final List<Long> lastModified = new ArrayList<Long>();
+        private final Map<String, IntList> postings = new HashMap<String, IntList>();
+
+        SegmentWriter(File dir) throws IOException {
+            this.dir = dir;
+            this.docs = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dir, IndexSegment.DOCS_FILE)), 64 * 1024));
+        }
+
+        String getName() {
+            return dir.getName();
+        }
+
+        int getDocCount() {
+            return docOffsets.size();
+        }
+
+        int add(WaveDoc doc) throws IOException {
+            int number = docOffsets.size();
+            docOffsets.add((long) docs.size());
+            lastModified.add(doc.lastModified);
+            docs.writeUTF(doc.waveId);
+            docs.writeUTF(truncate(doc.title));
+            docs.writeUTF(truncate(doc.snippet));
+            docs.writeLong(doc.lastModified);
+            docs.writeInt(doc.blipCount);
+            docs.writeInt(doc.unreadBlipCount);
+            docs.writeInt(doc.participants.size());
+            for (String participant : doc.participants) {
+                docs.writeUTF(truncate(participant));
+            }
+            for (String term : doc.terms) {
+                IntList list = postings.get(term);
+                if (list == null) {
+                    list = new IntList();
+                    postings.put(term, list);
+                }
+                list.add(number);
+            }
+            return number;
+        }
+
+        void close() throws IOException {
+            docs.close();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dir, IndexSegment.DOCS_INDEX_FILE)), 64 * 1024));
+            try {
+                out.writeInt(docOffsets.size());
+                for (int i = 0; i < docOffsets.size(); i++) {
+                    out.writeLong(docOffsets.get(i));
+                    out.writeLong(lastModified.get(i));
+                }
+            } finally {
+                out.close();
+            }
+            String[] terms = postings.keySet().toArray(new String[postings.size()]);
+            Arrays.sort(terms);
+            DataOutputStream terms_out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dir, IndexSegment.TERMS_FILE)), 64 * 1024));
+            DataOutputStream postings_out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dir, IndexSegment.POSTINGS_FILE)), 64 * 1024));
+            try {
+                terms_out.writeInt(terms.length);
+                for (String term : terms) {
+                    IntList list = postings.get(term);
+                    int offset = postings_out.size();
+                    int previous = 0;
+                    for (int i = 0; i < list.size; i++) {
+                        writeVarint(postings_out, list.values[i] - previous);
+                        previous = list.values[i];
+                    }
+                    terms_out.writeUTF(term);
+                    // DataOutputStream.size() overflows past 2GB, segments stay far below.
+                    terms_out.writeLong(offset);
+                    terms_out.writeInt(postings_out.size() - offset);
+                    terms_out.writeInt(list.size);
+                }
+            } finally {
+                terms_out.close();
+                postings_out.close();
+            }
+        }
+
+        private static void writeVarint(DataOutputStream out, int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        /** Keeps strings within the limit of writeUTF. */
+        private static String truncate(String s) {
+            return s.length() > MAX_STORED_LENGTH ? s.substring(0, MAX_STORED_LENGTH) : s;
+        }
+    }
+
+    /** Growable list of ints, postings of a term. */
+    private static final class IntList {
+
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
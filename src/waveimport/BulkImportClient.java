@@ -0,0 +1,317 @@
+package waveimport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+/**
+ * Pushes exported wavelets to the bulk import servlet of the wave server
+ * through a few long streamed requests, instead of a request per wavelet.
+ *
+ * The servlet answers a result line per wavelet as it goes, which are read
+ * while the request is still sent, see {@link StreamingPost}; otherwise
+ * unread results would fill the connection and stop the servlet.
+ *
+ * @author A. Kaplanov
+ */
+public class BulkImportClient {
+
+    // Time a request waits for the next item before it is ended.
+    private static final long MAX_IDLE_MILLIS = 10000;
+    // Time given to the response after the body fails to be sent.
+    private static final long ERROR_RESPONSE_WAIT_MILLIS = 5000;
+    // Time to connect, and for the next result while the server imports a large wavelet.
+    private static final int RESPONSE_TIMEOUT_MILLIS = 600000;
+    // Attempts to connect, the wait before the next one doubling from the first.
+    private static final int CONNECT_ATTEMPTS = 4;
+    private static final long CONNECT_RETRY_MILLIS = 2000;
+
+    /** Put to the queue of {@link #importStream} after the last item. */
+    public static final Item END = new Item((String) null, null);
+
+    private final String bulkImportUrl;
+    private final String waveServerDomain;
+    private final int connections;
+    private final AtomicInteger importedCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    /** Exported file or export held in memory, and the wavelet it is imported to. */
+    public static class Item {
+
+        private final File file;
+        private final String export;
+        private final WaveletName name;
+
+        public Item(File file, WaveletName name) {
+            this.file = file;
+            this.export = null;
+            this.name = name;
+        }
+
+        public Item(String export, WaveletName name) {
+            this.file = null;
+            this.export = export;
+            this.name = name;
+        }
+
+        private String getDescription() {
+            return file != null ? file.getPath() : name.waveId.serialise() + " " + name.waveletId.serialise();
+        }
+    }
+
+    public BulkImportClient(String bulkImportUrl, String waveServerDomain, int connections) {
+        this.bulkImportUrl = bulkImportUrl;
+        this.waveServerDomain = waveServerDomain;
+        this.connections = connections;
+    }
+
+    /**
+     * Imports the files, spreading them over the connections.
+     */
+    public void importFiles(List<Item> items) {
+        BlockingQueue<Item> queue = new LinkedBlockingQueue<Item>(items);
+        queue.add(END);
+        importStream(queue);
+    }
+
+    /**
+     * Imports items taken from the queue as they come, until {@link #END} is
+     * taken. A bounded queue makes producers wait while the connections, and
+     * so the wave server, are busy.
+     */
+    public void importStream(final BlockingQueue<Item> queue) {
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        boolean end = false;
+                        while (!end) {
+                            try {
+                                end = importRequest(queue);
+                            } catch (IOException ex) {
+                                // Items of the request are counted failed, the next request goes on.
+                                ex.printStackTrace(System.err);
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "BulkImportClient-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public int getImportedCount() {
+        return importedCount.get();
+    }
+
+    public int getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Sends items from the queue in one streamed request until the end of the
+     * queue, or until no item comes for a while, as while slow exports are
+     * fetched. Another thread reads results meanwhile. Returns whether the end of
+     * the queue was taken.
+     */
+    private boolean importRequest(BlockingQueue<Item> queue) throws IOException, InterruptedException {
+        Item item = queue.take();
+        if (item == END) {
+            // Left for the other connections.
+            queue.put(END);
+            return true;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/x-ndjson; charset=UTF-8");
+        headers.put("domain", waveServerDomain);
+        if (Compression.isEnabled()) {
+            headers.put("Content-Encoding", Compression.getContentEncoding());
+        }
+        StreamingPost post = null;
+        for (int attempt = 1; post == null; attempt++) {
+            try {
+                post = new StreamingPost(new URL(bulkImportUrl), headers, RESPONSE_TIMEOUT_MILLIS);
+            } catch (IOException ex) {
+                if (attempt >= CONNECT_ATTEMPTS) {
+                    // The item taken is not sent.
+                    failedCount.incrementAndGet();
+                    throw ex;
+                }
+                System.err.println("Connecting to " + bulkImportUrl + " failed, attempt " + attempt + " of "
+                        + CONNECT_ATTEMPTS + ": " + ex);
+                Thread.sleep(CONNECT_RETRY_MILLIS << (attempt - 1));
+            }
+        }
+        ResultReader results = new ResultReader(post);
+        Thread reader_thread = new Thread(results, Thread.currentThread().getName() + "-results");
+        reader_thread.start();
+        int sent = 0;
+        boolean end = false;
+        boolean done = false;
+        try {
+            OutputStream out = post.getOutputStream();
+            boolean compressed = Compression.isEnabled();
+            if (compressed) {
+                out = Compression.compress(out);
+            }
+            Writer writer = new OutputStreamWriter(out, "utf8");
+            for (;;) {
+                System.out.println("Sending " + item.getDescription() + "...");
+                sent++;
+                writer.write("{\"waveId\":" + JSONObject.quote(item.name.waveId.serialise())
+                        + ",\"waveletId\":" + JSONObject.quote(item.name.waveletId.serialise())
+                        + ",\"export\":");
+                Reader reader = item.file != null
+                        ? new InputStreamReader(new FileInputStream(item.file), "utf8") : new StringReader(item.export);
+                try {
+                    copyWithoutLineBreaks(reader, writer);
+                } finally {
+                    reader.close();
+                }
+                writer.write("}\n");
+                if (!compressed) {
+                    // Items from a slow producer are not held in the buffer. Flushing
+                    // does not push out what the compressor holds, so compressed items
+                    // wait for more input or the end of the request.
+                    writer.flush();
+                }
+                item = queue.poll(MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    // The request is ended rather than left idle to the server timeout.
+                    break;
+                }
+                if (item == END) {
+                    queue.put(END);
+                    end = true;
+                    break;
+                }
+            }
+            writer.close();
+            reader_thread.join();
+            done = true;
+        } catch (IOException ex) {
+            // The response may tell why the body was not taken.
+            reader_thread.join(ERROR_RESPONSE_WAIT_MILLIS);
+            post.close();
+            reader_thread.join();
+            failedCount.addAndGet(sent - results.count);
+            throw results.error != null ? results.error : ex;
+        } finally {
+            if (!done) {
+                post.close();
+            }
+        }
+        if (results.error != null) {
+            failedCount.addAndGet(sent - results.count);
+            throw results.error;
+        }
+        return end;
+    }
+
+    /**
+     * Reads and counts the results of a request while it is sent. An error
+     * closes the connection, which also stops the sending thread.
+     */
+    private class ResultReader implements Runnable {
+
+        private final StreamingPost post;
+        private volatile int count = 0;
+        private volatile IOException error = null;
+
+        ResultReader(StreamingPost post) {
+            this.post = post;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (post.getResponseCode() != 200) {
+                    throw new IOException("Bulk import failed: " + post.getResponseMessage());
+                }
+                BufferedReader reader = new BufferedReader(new InputStreamReader(post.getInputStream(), "utf8"));
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    JSONObject result = new JSONObject(line);
+                    String status = result.getString("result");
+                    System.out.println("... " + result.optString("waveId") + " " + result.optString("waveletId")
+                            + " " + status + (result.has("error") ? ": " + result.getString("error") : ""));
+                    if ("imported".equals(status)) {
+                        importedCount.incrementAndGet();
+                    } else if ("skipped".equals(status)) {
+                        skippedCount.incrementAndGet();
+                    } else {
+                        failedCount.incrementAndGet();
+                    }
+                    count++;
+                }
+            } catch (IOException ex) {
+                error = ex;
+            } catch (JSONException ex) {
+                error = new IOException(ex);
+            } finally {
+                try {
+                    post.close();
+                } catch (IOException ex) {
+                    // Closed anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies an export, which is a single JSON value, into the frame. Line
+     * breaks can only be whitespace between JSON tokens there.
+     */
+    private static void copyWithoutLineBreaks(Reader reader, Writer writer) throws IOException {
+        char buf[] = new char[8192];
+        for (;;) {
+            int ret = reader.read(buf, 0, buf.length);
+            if (ret == -1) {
+                break;
+            }
+            int start = 0;
+            for (int i = 0; i < ret; i++) {
+                if (buf[i] == '\n' || buf[i] == '\r') {
+                    writer.write(buf, start, i - start);
+                    start = i + 1;
+                }
+            }
+            writer.write(buf, start, ret - start);
+        }
+    }
+}
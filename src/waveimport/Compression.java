@@ -0,0 +1,46 @@
+package waveimport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compression of import request bodies.
+ *
+ * The level is taken from the {@code waveimport.compressionLevel} system
+ * property: 1 (fastest) to 9 (smallest), 0 sends bodies uncompressed.
+ *
+ * @author A. Kaplanov
+ */
+final class Compression {
+
+    static final String LEVEL_PROPERTY = "waveimport.compressionLevel";
+    private static final int DEFAULT_LEVEL = 6;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Compression() {
+    }
+
+    static int getLevel() {
+        return Integer.getInteger(LEVEL_PROPERTY, DEFAULT_LEVEL);
+    }
+
+    static boolean isEnabled() {
+        return getLevel() > 0;
+    }
+
+    /** Content-Encoding of bodies written by {@link #compress}. */
+    static String getContentEncoding() {
+        return "gzip";
+    }
+
+    /** Wraps {@code out} to gzip everything written at the configured level. */
+    static OutputStream compress(OutputStream out) throws IOException {
+        final int level = getLevel();
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+}
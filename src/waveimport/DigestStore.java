@@ -0,0 +1,296 @@
+package waveimport;
+
+import com.google.walkaround.proto.RobotSearchDigest;
+import com.google.walkaround.proto.impl.RobotSearchDigestImpl;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact store of search digests for enumerating millions of waves.
+ *
+ * Instead of a {@link RobotSearchDigest} object per wave, fields are kept in
+ * columns: numbers in primitive arrays, strings as UTF-8 in a single byte
+ * buffer, and participants as ids of interned addresses. The string buffer
+ * is allocated off the heap if the {@code waveimport.digests.direct} system
+ * property is true. Waves are numbered in the order they are added, and
+ * found by wave id through an open addressing hash table.
+ *
+ * Thread-safe.
+ *
+ * @author A. Kaplanov
+ */
+public class DigestStore implements Iterable<RobotSearchDigest> {
+
+    public static final String DIRECT_PROPERTY = "waveimport.digests.direct";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Strings of a wave: wave id, title, snippet
+    private static final int STRINGS_PER_WAVE = 3;
+
+    private final boolean direct;
+    private int size = 0;
+    private ByteBuffer strings;
+    // Ends of the strings of wave i at [STRINGS_PER_WAVE * i, STRINGS_PER_WAVE * (i + 1))
+    private int[] stringEnds = new int[INITIAL_CAPACITY * STRINGS_PER_WAVE];
+    private int[] waveIdHashes = new int[INITIAL_CAPACITY];
+    private long[] lastModified = new long[INITIAL_CAPACITY];
+    private int[] blipCounts = new int[INITIAL_CAPACITY];
+    private int[] unreadBlipCounts = new int[INITIAL_CAPACITY];
+    // Participants of wave i are at [participantEnds[i - 1], participantEnds[i])
+    private int[] participantEnds = new int[INITIAL_CAPACITY];
+    private int[] participants = new int[INITIAL_CAPACITY * 4];
+    // Wave number + 1 by wave id hash, 0 is free
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    private final Map<String, Integer> participantIds = new HashMap<String, Integer>();
+    private final List<String> participantAddresses = new ArrayList<String>();
+
+    public DigestStore() {
+        this(Boolean.getBoolean(DIRECT_PROPERTY));
+    }
+
+    public DigestStore(boolean direct) {
+        this.direct = direct;
+        this.strings = allocate(INITIAL_CAPACITY * 64);
+    }
+
+    /**
+     * Adds a digest and returns the number of the wave. A wave which is
+     * already in the store is not added again, its number is returned.
+     */
+    public int add(RobotSearchDigest digest) {
+        return add(digest.getWaveId(), digest.getTitle(), digest.getSnippet(), digest.getParticipant(),
+                digest.getLastModifiedMillis(), digest.getBlipCount(), digest.getUnreadBlipCount());
+    }
+
+    /** Adds the fields of a digest, see {@link #add(RobotSearchDigest)}. */
+    public synchronized int add(String waveId, String title, String snippet, List<String> participants,
+            long lastModified, int blipCount, int unreadBlipCount) {
+        int existing = indexOf(waveId);
+        if (existing != -1) {
+            return existing;
+        }
+        if (size == waveIdHashes.length) {
+            grow();
+        }
+        int index = size;
+        putString(index * STRINGS_PER_WAVE, waveId);
+        putString(index * STRINGS_PER_WAVE + 1, title);
+        putString(index * STRINGS_PER_WAVE + 2, snippet);
+        waveIdHashes[index] = waveId.hashCode();
+        this.lastModified[index] = lastModified;
+        blipCounts[index] = blipCount;
+        unreadBlipCounts[index] = unreadBlipCount;
+        int start = participantStart(index);
+        if (this.participants.length < start + participants.size()) {
+            this.participants = Arrays.copyOf(this.participants,
+                    Math.max(this.participants.length * 2, start + participants.size()));
+        }
+        for (int i = 0; i < participants.size(); i++) {
+            this.participants[start + i] = intern(participants.get(i));
+        }
+        participantEnds[index] = start + participants.size();
+        size++;
+        insert(index);
+        return index;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Returns the number of the wave, or -1 if it is not in the store. */
+    public synchronized int indexOf(String waveId) {
+        int hash = waveId.hashCode();
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (waveIdHashes[index] == hash && getString(index * STRINGS_PER_WAVE).equals(waveId)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized String getWaveId(int index) {
+        return getString(checkIndex(index) * STRINGS_PER_WAVE);
+    }
+
+    public synchronized String getTitle(int index) {
+        return getString(checkIndex(index) * STRINGS_PER_WAVE + 1);
+    }
+
+    public synchronized String getSnippet(int index) {
+        return getString(checkIndex(index) * STRINGS_PER_WAVE + 2);
+    }
+
+    public synchronized long getLastModified(int index) {
+        return lastModified[checkIndex(index)];
+    }
+
+    public synchronized int getBlipCount(int index) {
+        return blipCounts[checkIndex(index)];
+    }
+
+    public synchronized int getUnreadBlipCount(int index) {
+        return unreadBlipCounts[checkIndex(index)];
+    }
+
+    public synchronized int getParticipantCount(int index) {
+        return participantEnds[checkIndex(index)] - participantStart(index);
+    }
+
+    /** Returns the interned id of the n-th participant of the wave. */
+    public synchronized int getParticipantId(int index, int n) {
+        return participants[participantStart(checkIndex(index)) + n];
+    }
+
+    /** Returns the address of an interned participant id. */
+    public synchronized String getParticipantAddress(int participantId) {
+        return participantAddresses.get(participantId);
+    }
+
+    /** Returns the number of distinct participants. */
+    public synchronized int getParticipantIdCount() {
+        return participantAddresses.size();
+    }
+
+    /** Returns a digest object of the wave, made on each call. */
+    public synchronized RobotSearchDigest getDigest(int index) {
+        RobotSearchDigest digest = new RobotSearchDigestImpl();
+        digest.setWaveId(getWaveId(index));
+        digest.setTitle(getTitle(index));
+        digest.setSnippet(getSnippet(index));
+        digest.setLastModifiedMillis(lastModified[index]);
+        digest.setBlipCount(blipCounts[index]);
+        digest.setUnreadBlipCount(unreadBlipCounts[index]);
+        for (int i = participantStart(index); i < participantEnds[index]; i++) {
+            digest.addParticipant(participantAddresses.get(participants[i]));
+        }
+        return digest;
+    }
+
+    /** Iterates over digests in the order of wave numbers, see {@link #getDigest}. */
+    @Override
+    public Iterator<RobotSearchDigest> iterator() {
+        return new Iterator<RobotSearchDigest>() {
+
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            @Override
+            public RobotSearchDigest next() {
+                if (next >= size()) {
+                    throw new NoSuchElementException();
+                }
+                return getDigest(next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Approximate number of bytes taken by the columns, without interned addresses. */
+    public synchronized long getMemoryUsage() {
+        return strings.capacity() + 4L * (stringEnds.length + waveIdHashes.length + blipCounts.length
+                + unreadBlipCounts.length + participantEnds.length + participants.length + table.length)
+                + 8L * lastModified.length;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Wave " + index + " of " + size);
+        }
+        return index;
+    }
+
+    private int participantStart(int index) {
+        return index == 0 ? 0 : participantEnds[index - 1];
+    }
+
+    private int intern(String address) {
+        Integer id = participantIds.get(address);
+        if (id == null) {
+            id = participantAddresses.size();
+            participantIds.put(address, id);
+            participantAddresses.add(address);
+        }
+        return id;
+    }
+
+    private void putString(int slot, String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        int start = slot == 0 ? 0 : stringEnds[slot - 1];
+        if (strings.capacity() - start < bytes.length) {
+            long capacity = Math.max(2L * strings.capacity(), (long) start + bytes.length);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Digest store is full");
+            }
+            ByteBuffer grown = allocate((int) capacity);
+            strings.position(0).limit(start);
+            grown.put(strings);
+            strings = grown;
+        }
+        strings.limit(strings.capacity()).position(start);
+        strings.put(bytes);
+        stringEnds[slot] = start + bytes.length;
+    }
+
+    private String getString(int slot) {
+        int start = slot == 0 ? 0 : stringEnds[slot - 1];
+        byte[] bytes = new byte[stringEnds[slot] - start];
+        ByteBuffer view = strings.duplicate();
+        view.limit(stringEnds[slot]).position(start);
+        view.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void grow() {
+        int capacity = waveIdHashes.length * 2;
+        stringEnds = Arrays.copyOf(stringEnds, capacity * STRINGS_PER_WAVE);
+        waveIdHashes = Arrays.copyOf(waveIdHashes, capacity);
+        lastModified = Arrays.copyOf(lastModified, capacity);
+        blipCounts = Arrays.copyOf(blipCounts, capacity);
+        unreadBlipCounts = Arrays.copyOf(unreadBlipCounts, capacity);
+        participantEnds = Arrays.copyOf(participantEnds, capacity);
+        table = new int[capacity * 2];
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    private void insert(int index) {
+        int mask = table.length - 1;
+        int slot = mix(waveIdHashes[index]) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    /** Spreads string hashes, which differ mostly in low bits, over the table. */
+    private static int mix(int hash) {
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        return hash ^ (hash >>> 7) ^ (hash >>> 4);
+    }
+}
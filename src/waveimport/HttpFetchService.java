@@ -0,0 +1,121 @@
+package waveimport;
+
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.common.io.ByteStreams;
+import com.google.walkaround.wave.server.auth.FetchResponse;
+import com.google.walkaround.wave.server.auth.FetchService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetch service which makes requests with {@link HttpURLConnection}, so the
+ * tools need neither the local App Engine runtime nor its API proxy.
+ *
+ * The deadline and redirect options of requests are honoured, certificates
+ * are always validated. The deadline bounds the whole request: the
+ * connection is closed when it passes, since the timeouts of
+ * {@link HttpURLConnection} only bound each connect and read.
+ *
+ * Thread-safe.
+ *
+ * @author A. Kaplanov
+ */
+public class HttpFetchService extends FetchService {
+
+    // Deadline of App Engine fetches without one, in seconds
+    private static final double DEFAULT_DEADLINE = 5;
+
+    // Closes the connections of fetches past their deadlines, shared by all fetches.
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpFetchService-deadlines");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    @Override
+    public FetchResponse fetch(HTTPRequest request) throws IOException {
+        FetchOptions options = request.getFetchOptions();
+        Double deadline = options != null ? options.getDeadline() : null;
+        int timeout = (int) ((deadline != null ? deadline : DEFAULT_DEADLINE) * 1000);
+        final HttpURLConnection connection = (HttpURLConnection) request.getURL().openConnection();
+        connection.setRequestMethod(request.getMethod().name());
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setInstanceFollowRedirects(options == null || options.getFollowRedirects());
+        for (HTTPHeader header : request.getHeaders()) {
+            connection.addRequestProperty(header.getName(), header.getValue());
+        }
+        final AtomicBoolean expired = new AtomicBoolean();
+        ScheduledFuture<?> expiry = DEADLINES.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                expired.set(true);
+                connection.disconnect();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        try {
+            return fetch(request, connection);
+        } catch (IOException ex) {
+            if (expired.get()) {
+                throw new SocketTimeoutException("Deadline of " + timeout + " ms exceeded: " + request.getURL());
+            }
+            throw ex;
+        } finally {
+            expiry.cancel(false);
+        }
+    }
+
+    private static FetchResponse fetch(HTTPRequest request, HttpURLConnection connection) throws IOException {
+        byte[] payload = request.getPayload();
+        if (payload != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(payload.length);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(payload);
+            } finally {
+                out.close();
+            }
+        }
+        int code = connection.getResponseCode();
+        InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        byte[] content = new byte[0];
+        if (in != null) {
+            try {
+                content = ByteStreams.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        }
+        List<HTTPHeader> headers = new ArrayList<HTTPHeader>();
+        for (Map.Entry<String, List<String>> entry : connection.getHeaderFields().entrySet()) {
+            // The status line has no name.
+            if (entry.getKey() != null) {
+                for (String value : entry.getValue()) {
+                    headers.add(new HTTPHeader(entry.getKey(), value));
+                }
+            }
+        }
+        return new FetchResponse(code, content, connection.getURL(), headers);
+    }
+}
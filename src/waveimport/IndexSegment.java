@@ -0,0 +1,244 @@
+package waveimport;
+
+import com.google.walkaround.proto.RobotSearchDigest;
+import com.google.walkaround.proto.impl.RobotSearchDigestImpl;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Immutable part of the {@link ArchiveIndex}, a directory with the files:
+ * <ul>
+ * <li>{@code docs} - stored digests, read only for returned results;</li>
+ * <li>{@code docs.idx} - offset in {@code docs} and last modification time
+ * of each wave, kept in memory;</li>
+ * <li>{@code terms} - sorted terms with the offset, size and length of their
+ * postings, every {@link #TERM_BLOCK}th term is kept in memory;</li>
+ * <li>{@code postings} - ascending doc numbers of each term, delta and
+ * varint encoded;</li>
+ * <li>{@code deleted-<generation>} - doc numbers of waves indexed again in
+ * later segments, the generation is named by the manifest.</li>
+ * </ul>
+ *
+ * Thread-safe once opened.
+ *
+ * @author A. Kaplanov
+ */
+class IndexSegment {
+
+    static final String DOCS_FILE = "docs";
+    static final String DOCS_INDEX_FILE = "docs.idx";
+    static final String TERMS_FILE = "terms";
+    static final String POSTINGS_FILE = "postings";
+    static final String DELETED_FILE_PREFIX = "deleted-";
+
+    /** Every this many terms one is kept in memory. */
+    static final int TERM_BLOCK = 128;
+
+    private final File dir;
+    private final long[] docOffsets;
+    private final long[] lastModified;
+    private final String[] blockTerms;
+    private final long[] blockOffsets;
+    private final long termsLength;
+    private final BitSet deleted;
+    private final FileChannel docs;
+    private final FileChannel terms;
+    private final FileChannel postings;
+
+    IndexSegment(File dir, String deletedFile) throws IOException {
+        this.dir = dir;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, DOCS_INDEX_FILE)), 64 * 1024));
+        try {
+            int count = in.readInt();
+            docOffsets = new long[count];
+            lastModified = new long[count];
+            for (int i = 0; i < count; i++) {
+                docOffsets[i] = in.readLong();
+                lastModified[i] = in.readLong();
+            }
+        } finally {
+            in.close();
+        }
+        List<String> block_terms = new ArrayList<String>();
+        List<Long> block_offsets = new ArrayList<Long>();
+        File terms_file = new File(dir, TERMS_FILE);
+        termsLength = terms_file.length();
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(terms_file), 64 * 1024));
+        try {
+            int count = in.readInt();
+            long offset = 4;
+            for (int i = 0; i < count; i++) {
+                String term = in.readUTF();
+                if (i % TERM_BLOCK == 0) {
+                    block_terms.add(term);
+                    block_offsets.add(offset);
+                }
+                in.readLong();
+                in.readInt();
+                in.readInt();
+                offset += utfLength(term) + 2 + 8 + 4 + 4;
+            }
+        } finally {
+            in.close();
+        }
+        blockTerms = block_terms.toArray(new String[block_terms.size()]);
+        blockOffsets = new long[block_offsets.size()];
+        for (int i = 0; i < blockOffsets.length; i++) {
+            blockOffsets[i] = block_offsets.get(i);
+        }
+        deleted = new BitSet(docOffsets.length);
+        if (deletedFile != null) {
+            for (int doc : readDeleted(new File(dir, deletedFile))) {
+                deleted.set(doc);
+            }
+        }
+        docs = new RandomAccessFile(new File(dir, DOCS_FILE), "r").getChannel();
+        terms = new RandomAccessFile(terms_file, "r").getChannel();
+        postings = new RandomAccessFile(new File(dir, POSTINGS_FILE), "r").getChannel();
+    }
+
+    String getName() {
+        return dir.getName();
+    }
+
+    int getDocCount() {
+        return docOffsets.length;
+    }
+
+    long getLastModified(int doc) {
+        return lastModified[doc];
+    }
+
+    boolean isDeleted(int doc) {
+        return deleted.get(doc);
+    }
+
+    /** Returns ascending doc numbers of the waves with the term. */
+    int[] getPostings(String term) throws IOException {
+        int block = Arrays.binarySearch(blockTerms, term);
+        if (block < 0) {
+            block = -block - 2;
+            if (block < 0) {
+                return new int[0];
+            }
+        }
+        long start = blockOffsets[block];
+        long end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : termsLength;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(terms, start, (int) (end - start))));
+        for (int i = 0; i < TERM_BLOCK; i++) {
+            String block_term;
+            try {
+                block_term = in.readUTF();
+            } catch (EOFException ex) {
+                break;
+            }
+            long offset = in.readLong();
+            int length = in.readInt();
+            int count = in.readInt();
+            int cmp = block_term.compareTo(term);
+            if (cmp == 0) {
+                return decodePostings(read(postings, offset, length), count);
+            }
+            if (cmp > 0) {
+                break;
+            }
+        }
+        return new int[0];
+    }
+
+    /** Reads the stored digest of a wave. */
+    RobotSearchDigest getDigest(int doc) throws IOException {
+        long end = doc + 1 < docOffsets.length ? docOffsets[doc + 1] : docs.size();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                read(docs, docOffsets[doc], (int) (end - docOffsets[doc]))));
+        RobotSearchDigest digest = new RobotSearchDigestImpl();
+        digest.setWaveId(in.readUTF());
+        digest.setTitle(in.readUTF());
+        digest.setSnippet(in.readUTF());
+        digest.setLastModifiedMillis(in.readLong());
+        digest.setBlipCount(in.readInt());
+        digest.setUnreadBlipCount(in.readInt());
+        int participants = in.readInt();
+        for (int i = 0; i < participants; i++) {
+            digest.addParticipant(in.readUTF());
+        }
+        return digest;
+    }
+
+    void close() throws IOException {
+        docs.close();
+        terms.close();
+        postings.close();
+    }
+
+    static int[] readDeleted(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int[] docs = new int[in.readInt()];
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = in.readInt();
+            }
+            return docs;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int[] decodePostings(byte[] bytes, int count) {
+        int[] docs = new int[count];
+        int pos = 0;
+        int doc = 0;
+        for (int i = 0; i < count; i++) {
+            int delta = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = bytes[pos++];
+                delta |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            doc += delta;
+            docs[i] = doc;
+        }
+        return docs;
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) == -1) {
+                throw new EOFException("Truncated index file");
+            }
+        }
+        return buf.array();
+    }
+
+    /** Length of the modified UTF-8 encoding written by writeUTF. */
+    static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length++;
+            } else if (c > 0x07ff) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,196 @@
+package waveimport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Claims units of work shared by worker processes through lease files in a
+ * common directory, which may be on a network file system.
+ *
+ * A worker owns a unit while its lease file exists, holds the worker id and
+ * is touched by the heartbeat of the worker more often than the timeout. A
+ * lease not touched for longer is expired and is taken over by the next
+ * worker which tries the unit, so units of crashed workers are done by
+ * others. Completed units get a done file and are not claimed again. Files
+ * are spread over 256 subdirectories.
+ *
+ * The clocks of the workers must agree to much better than the timeout.
+ *
+ * Thread-safe.
+ *
+ * @author A. Kaplanov
+ */
+public class LeaseManager {
+
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String DONE_SUFFIX = ".done";
+
+    private final File dir;
+    private final String workerId;
+    private final long timeout;
+    private final Set<String> held = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile Thread heartbeat;
+
+    public LeaseManager(File dir, String workerId, long timeout) {
+        this.dir = dir;
+        this.workerId = workerId;
+        this.timeout = timeout;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /** Starts touching the held leases, a third of the timeout apart. */
+    public synchronized void start() {
+        if (heartbeat != null) {
+            return;
+        }
+        heartbeat = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(timeout / 3);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (String unit : held) {
+                        File lease = getFile(unit, LEASE_SUFFIX);
+                        if (!workerId.equals(readOwner(lease)) || !lease.setLastModified(System.currentTimeMillis())) {
+                            System.out.println("Lost lease of " + unit);
+                            held.remove(unit);
+                        }
+                    }
+                }
+            }
+        }, "LeaseManager-heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+    /** Stops the heartbeat, the held leases expire. */
+    public synchronized void stop() {
+        if (heartbeat != null) {
+            heartbeat.interrupt();
+            heartbeat = null;
+        }
+    }
+
+    public boolean isDone(String unit) {
+        return getFile(unit, DONE_SUFFIX).exists();
+    }
+
+    /**
+     * Claims the unit. Returns false if it is done or leased by another
+     * worker whose lease is not expired.
+     */
+    public boolean tryAcquire(String unit) throws IOException {
+        if (held.contains(unit)) {
+            return true;
+        }
+        if (isDone(unit)) {
+            return false;
+        }
+        File lease = getFile(unit, LEASE_SUFFIX);
+        lease.getParentFile().mkdirs();
+        if (!lease.createNewFile() && !(takeOverExpired(lease) && lease.createNewFile())) {
+            return false;
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(lease), "utf8");
+        try {
+            writer.write(workerId);
+        } finally {
+            writer.close();
+        }
+        held.add(unit);
+        // Completed by another worker after the check above.
+        if (isDone(unit)) {
+            release(unit);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the worker still holds the unit, which is checked before
+     * making its results visible.
+     */
+    public boolean isHeld(String unit) {
+        return held.contains(unit) && workerId.equals(readOwner(getFile(unit, LEASE_SUFFIX)));
+    }
+
+    /** Marks a held unit done and drops its lease. */
+    public void complete(String unit) throws IOException {
+        File done = getFile(unit, DONE_SUFFIX);
+        if (!done.createNewFile() && !done.exists()) {
+            throw new IOException("Can't create " + done);
+        }
+        release(unit);
+    }
+
+    /** Drops the lease of a unit without completing it, others may claim it. */
+    public void release(String unit) {
+        if (held.remove(unit)) {
+            File lease = getFile(unit, LEASE_SUFFIX);
+            if (workerId.equals(readOwner(lease))) {
+                lease.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes an expired lease. The lease is first renamed to a name of this
+     * worker, which succeeds for one worker only, then checked again, since
+     * another worker may have replaced it meanwhile.
+     */
+    private boolean takeOverExpired(File lease) {
+        long last_modified = lease.lastModified();
+        if (last_modified != 0 && System.currentTimeMillis() - last_modified <= timeout) {
+            return false;
+        }
+        File taken = new File(lease.getPath() + "." + workerId);
+        if (!lease.renameTo(taken)) {
+            // Vanished, completed or released meanwhile
+            return !lease.exists();
+        }
+        if (System.currentTimeMillis() - taken.lastModified() <= timeout) {
+            // Renamed a fresh lease of another worker, put it back.
+            if (!taken.renameTo(lease)) {
+                taken.delete();
+            }
+            return false;
+        }
+        System.out.println("Took over expired lease " + lease.getName() + " of " + readOwner(taken));
+        taken.delete();
+        return true;
+    }
+
+    private static String readOwner(File lease) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(lease), "utf8"));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private File getFile(String unit, String suffix) {
+        String bucket = String.format("%02x", unit.hashCode() & 0xff);
+        return new File(new File(dir, bucket), unit + suffix);
+    }
+}
@@ -0,0 +1,115 @@
+package waveimport;
+
+import com.google.appengine.tools.development.ApiProxyLocal;
+import com.google.appengine.tools.development.ApiProxyLocalFactory;
+import com.google.appengine.tools.development.LocalServerEnvironment;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The local App Engine API proxy, which runs url fetches of
+ * {@code URLFetchServiceFactory} services. Only loaded when the tools are
+ * told to fetch through App Engine, see {@link WaveExport#getFetchService}.
+ *
+ * @author A. Kaplanov
+ */
+class LocalApiProxy {
+
+    /**
+     * Installs the proxy and its environment for the calling thread. Other
+     * threads making fetches need {@link #initThread}.
+     */
+    static void install() {
+        ApiProxyLocal proxy = new ApiProxyLocalFactory().create(new ApiProxyEnvironment());
+        ApiProxy.setDelegate(proxy);
+        initThread();
+    }
+
+    static void initThread() {
+        ApiProxy.setEnvironmentForCurrentThread(new ApiEnvironment());
+    }
+
+    private static class ApiProxyEnvironment implements LocalServerEnvironment {
+
+        @Override
+        public File getAppDir() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public String getAddress() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public int getPort() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public String getHostName() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public void waitForServerToStart() throws InterruptedException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public boolean enforceApiDeadlines() {
+            return false;
+        }
+
+        @Override
+        public boolean simulateProductionLatencies() {
+            return false;
+        }
+    }
+
+    private static class ApiEnvironment implements Environment {
+
+        @Override
+        public String getAppId() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public String getVersionId() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public String getEmail() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public boolean isLoggedIn() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public boolean isAdmin() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public String getAuthDomain() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public String getRequestNamespace() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return new HashMap<String, Object>();
+        }
+    }
+}
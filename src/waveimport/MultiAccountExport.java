@@ -0,0 +1,348 @@
+package waveimport;
+
+import com.google.walkaround.proto.RobotSearchDigest;
+import com.google.walkaround.wave.server.auth.FetchService;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+/**
+ * Exports the waves of many accounts in one process.
+ *
+ * Each account has its own OAuth context, all of them fetch through the same
+ * url fetch service and pool of threads. Accounts take turns: an account has
+ * at most one step in the pool at a time, a page of search results or a wave,
+ * and queues the next step when it is done, so a large account does not hold
+ * up the others.
+ *
+ * Shared waves are exported once: search digests go to one
+ * {@link DigestStore}, and a wavelet is fetched only by the first account
+ * which claims it, later ones find its export file. If that fetch fails, the
+ * wavelet is tried again with the other accounts which can see it, after all
+ * accounts are done.
+ *
+ * Accounts are read from a file with a line per account:
+ * {@code <UserId> <Participant> <RefreshToken> <AccessToken>}, empty lines
+ * and lines starting with {@code #} are skipped.
+ *
+ * @author A. Kaplanov
+ */
+public class MultiAccountExport {
+
+    private static final int PAGE_SIZE = 100;
+    private static final int DEFAULT_THREADS = 8;
+
+    private final String clientId;
+    private final String clientSecret;
+    private final List<String[]> credentials;
+    private final String exportDir;
+    private final int threads;
+
+    private final DigestStore digests = new DigestStore();
+    // Waves whose digest is saved
+    private final BitSet savedDigests = new BitSet();
+    // Wavelets being fetched or failed, by export file name
+    private final ConcurrentMap<String, Claim> claims = new ConcurrentHashMap<String, Claim>();
+    private final AtomicInteger exportedCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    private ExecutorService executor;
+    private CountDownLatch accountsDone;
+
+    /** Export state of a wavelet shared by accounts. */
+    private static final class Claim {
+
+        private final WaveId waveId;
+        private final WaveletId waveletId;
+        private final File file;
+        private boolean claimed = false;
+        private boolean exported = false;
+        // Accounts which can see the wavelet, and which failed to fetch it
+        private final Set<Account> seenBy = new LinkedHashSet<Account>();
+        private final Set<Account> failedBy = new HashSet<Account>();
+
+        Claim(WaveId waveId, WaveletId waveletId, File file) {
+            this.waveId = waveId;
+            this.waveletId = waveletId;
+            this.file = file;
+        }
+    }
+
+    /** An account and its progress, stepped by one thread at a time. */
+    private final class Account implements Runnable {
+
+        private final String participant;
+        private final RobotApi api;
+        private boolean searched = false;
+        private int searchIndex = 0;
+        // Numbers of the waves found, in the digest store
+        private int[] waves = new int[PAGE_SIZE];
+        private int waveCount = 0;
+        private int nextWave = 0;
+
+        Account(String participant, RobotApi api) {
+            this.participant = participant;
+            this.api = api;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!searched) {
+                    searchPage();
+                } else {
+                    exportWave(waves[nextWave++]);
+                }
+            } catch (RuntimeException ex) {
+                System.out.println(participant + ": error " + ex);
+                ex.printStackTrace(System.err);
+            }
+            if (!searched || nextWave < waveCount) {
+                executor.execute(this);
+            } else {
+                System.out.println(participant + ": done, " + waveCount + " waves");
+                accountsDone.countDown();
+            }
+        }
+
+        private void searchPage() {
+            int[] page;
+            try {
+                page = api.search(WaveExport.SEARCH_QUERY, searchIndex, PAGE_SIZE, digests);
+            } catch (IOException ex) {
+                System.out.println(participant + ": search failed, " + ex);
+                searched = true;
+                return;
+            }
+            if (page.length == 0) {
+                searched = true;
+                return;
+            }
+            searchIndex += page.length;
+            if (waves.length < waveCount + page.length) {
+                waves = Arrays.copyOf(waves, Math.max(waves.length * 2, waveCount + page.length));
+            }
+            System.arraycopy(page, 0, waves, waveCount, page.length);
+            waveCount += page.length;
+        }
+
+        private void exportWave(int wave) {
+            RobotSearchDigest digest = digests.getDigest(wave);
+            try {
+                saveDigest(wave, digest);
+                WaveId wave_id = WaveId.deserialise(digest.getWaveId());
+                for (WaveletId wavelet_id : api.getWaveView(wave_id)) {
+                    Claim claim = getClaim(digest.getWaveId(), wave_id, wavelet_id);
+                    if (claim(claim, this)) {
+                        fetch(claim, this);
+                    }
+                }
+            } catch (IOException ex) {
+                System.out.println(participant + ": error " + digest.getWaveId() + " " + ex);
+            }
+        }
+    }
+
+    public MultiAccountExport(String clientId, String clientSecret, List<String[]> credentials, String exportDir,
+            int threads) {
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.credentials = credentials;
+        this.exportDir = exportDir;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 4 && args.length != 5) {
+            System.err.println("Use: MultiAccountExport <ClientId> <ClientSecret> <AccountsFile> <ExportDir> [<Threads>]");
+            return;
+        }
+        try {
+            List<String[]> credentials = readCredentials(new File(args[2]));
+            int threads = args.length == 5 ? Integer.parseInt(args[4]) : DEFAULT_THREADS;
+            new MultiAccountExport(args[0], args[1], credentials, args[3], threads).run();
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    public void run() {
+        final FetchService fetch_service = WaveExport.getFetchService();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        WaveExport.initApiThread();
+                        r.run();
+                    }
+                }, "MultiAccountExport-" + number.incrementAndGet());
+            }
+        });
+        try {
+            List<Account> accounts = new ArrayList<Account>();
+            for (String[] cred : credentials) {
+                accounts.add(new Account(cred[1], WaveExport.createRobotApi(fetch_service, clientId, clientSecret,
+                        cred[0], cred[1], cred[2], cred[3])));
+            }
+            accountsDone = new CountDownLatch(accounts.size());
+            for (Account account : accounts) {
+                executor.execute(account);
+            }
+            accountsDone.await();
+            retryFailed();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("Waves count " + digests.size());
+        System.out.println("Exported count " + exportedCount.get());
+        System.out.println("Skipped count " + skippedCount.get());
+        System.out.println("Failed count " + failedCount.get());
+    }
+
+    /**
+     * Fetches wavelets whose fetch failed with the accounts which did not try
+     * them yet, until none is left.
+     */
+    private void retryFailed() {
+        for (Claim claim : claims.values()) {
+            for (;;) {
+                Account account = null;
+                synchronized (claim) {
+                    if (claim.exported) {
+                        break;
+                    }
+                    for (Account candidate : claim.seenBy) {
+                        if (!claim.failedBy.contains(candidate)) {
+                            account = candidate;
+                            break;
+                        }
+                    }
+                    if (account == null) {
+                        failedCount.incrementAndGet();
+                        System.out.println("Failed " + claim.file.getName());
+                        break;
+                    }
+                    claim.claimed = true;
+                }
+                fetch(claim, account);
+            }
+        }
+    }
+
+    private Claim getClaim(String waveId, WaveId wave_id, WaveletId waveletId) {
+        File file = WaveExport.getExportFile(exportDir, waveId, waveletId);
+        String key = file.getName();
+        Claim claim = claims.get(key);
+        if (claim == null) {
+            Claim new_claim = new Claim(wave_id, waveletId, file);
+            claim = claims.putIfAbsent(key, new_claim);
+            if (claim == null) {
+                claim = new_claim;
+            }
+        }
+        return claim;
+    }
+
+    /** Returns whether the account has to fetch the wavelet. */
+    private boolean claim(Claim claim, Account account) {
+        synchronized (claim) {
+            claim.seenBy.add(account);
+            if (claim.claimed) {
+                skippedCount.incrementAndGet();
+                return false;
+            }
+            claim.claimed = true;
+            if (claim.file.exists()) {
+                // Exported by another account or an earlier run.
+                claim.exported = true;
+                claims.remove(claim.file.getName(), claim);
+                skippedCount.incrementAndGet();
+                System.out.println("Skiped " + claim.file.getName());
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private void fetch(Claim claim, Account account) {
+        System.out.println(account.participant + ": exporting " + claim.file.getName() + "...");
+        boolean exported = false;
+        try {
+            WaveExport.exportWavelet(account.api, claim.waveId, claim.waveletId, claim.file);
+            exported = true;
+            exportedCount.incrementAndGet();
+        } catch (IOException ex) {
+            System.out.println(account.participant + ": error " + claim.file.getName() + " " + ex);
+        }
+        synchronized (claim) {
+            claim.exported = exported;
+            if (exported) {
+                // Later accounts find the file.
+                claims.remove(claim.file.getName(), claim);
+            } else {
+                // Left to the other accounts in retryFailed.
+                claim.failedBy.add(account);
+            }
+        }
+    }
+
+    /** Saves the digest of a wave once, as the first account found it. */
+    private void saveDigest(int wave, RobotSearchDigest digest) throws IOException {
+        synchronized (savedDigests) {
+            if (savedDigests.get(wave)) {
+                return;
+            }
+            savedDigests.set(wave);
+        }
+        WaveExport.saveDigest(exportDir, digest);
+    }
+
+    static List<String[]> readCredentials(File file) throws IOException {
+        List<String[]> credentials = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf8"));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                StringTokenizer st = new StringTokenizer(line, " \t");
+                if (st.countTokens() != 4) {
+                    throw new IOException("Expected <UserId> <Participant> <RefreshToken> <AccessToken>: " + line);
+                }
+                credentials.add(new String[] { st.nextToken(), st.nextToken(), st.nextToken(), st.nextToken() });
+            }
+        } finally {
+            reader.close();
+        }
+        return credentials;
+    }
+}
@@ -20,7 +20,6 @@ import com.google.appengine.api.urlfetch.FetchOptions;
 import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPMethod;
 import com.google.appengine.api.urlfetch.HTTPRequest;
-import com.google.appengine.api.urlfetch.HTTPResponse;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
@@ -30,8 +29,10 @@ import com.google.inject.assistedinject.Assisted;
 import com.google.walkaround.proto.GoogleImport.GoogleDocument;
 import com.google.walkaround.proto.GoogleImport.GoogleWavelet;
 import com.google.walkaround.proto.Proto.ProtocolAppliedWaveletDelta;
+import com.google.walkaround.proto.Proto.ProtocolWaveletDelta;
 import com.google.walkaround.proto.RobotSearchDigest;
 import com.google.walkaround.proto.gson.RobotSearchDigestGsonImpl;
+import com.google.walkaround.wave.server.auth.FetchResponse;
 import com.google.walkaround.wave.server.auth.OAuthedFetchService;
 import com.google.walkaround.wave.server.auth.OAuthedFetchService.TokenRefreshNeededDetector;
 
@@ -39,6 +40,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
@@ -47,6 +49,7 @@ import org.waveprotocol.wave.model.util.ValueUtils;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -89,28 +92,157 @@ public class RobotApi {
 
   private static final String EXPECTED_CONTENT_TYPE = "application/json; charset=UTF-8";
 
-  private final TokenRefreshNeededDetector robotErrorCode401Detector =
-      new TokenRefreshNeededDetector() {
-        @Override public boolean refreshNeeded(HTTPResponse resp) throws IOException {
-          if (resp.getResponseCode() == 401) {
-            return true;
-          }
-          if (!EXPECTED_CONTENT_TYPE.equals(fetch.getSingleHeader(resp, "Content-Type"))) {
-            return false;
-          }
-          JSONObject result = parseJsonResponseBody(resp);
-          try {
-            if (result.has("error")) {
-              JSONObject error = result.getJSONObject("error");
-              return error.has("code") && error.getInt("code") == 401;
-            } else {
-              return false;
-            }
-          } catch (JSONException e) {
-            throw new RuntimeException("JSONException parsing response: " + result, e);
+  // Bounds of fetch deadlines in seconds, and attempts of a chunk of deltas.
+  private static final double MIN_DEADLINE =
+      Double.parseDouble(System.getProperty("waveimport.fetch.minDeadline", "20"));
+  private static final double MAX_DEADLINE =
+      Double.parseDouble(System.getProperty("waveimport.fetch.maxDeadline", "60"));
+  private static final int CHUNK_ATTEMPTS = Integer.getInteger("waveimport.fetch.attempts", 3);
+
+  // Responses smaller than this say more about latency than throughput.
+  private static final int MIN_MEASURED_RESPONSE = 64 * 1024;
+
+  // Observed throughput of large responses and the largest response, for
+  // deadlines.  Guarded by this.
+  private double bytesPerSecond = 0;
+  private long largestResponse = 0;
+  // Fewest deltas of a chunk that was followed by more, taken as the number
+  // the server answers per call, 0 until known.  Guarded by this.
+  private int deltasPerChunk = 0;
+
+  /**
+   * Response of a call, decoded and parsed once.  The body is kept for
+   * logging, so the parsed result is not serialized again.
+   */
+  private static final class ParsedResponse {
+    final FetchResponse response;
+    final String body;
+    final JSONObject item;
+
+    ParsedResponse(FetchResponse response, String body, JSONObject item) {
+      this.response = response;
+      this.body = body;
+      this.item = item;
+    }
+  }
+
+  /**
+   * Detects 401 errors of the robot API, which come in the response envelope
+   * with status 200.  Only the error member of the envelope is parsed, the
+   * data is skipped.  Made for each call: the decoded body is kept and taken
+   * by {@link #getParsed} if it is the response finally returned, so that the
+   * body is decoded once and parsed once for the caller.
+   */
+  private final class RobotErrorCode401Detector implements TokenRefreshNeededDetector {
+    private FetchResponse response = null;
+    private String body = null;
+
+    @Override public boolean refreshNeeded(FetchResponse resp) throws IOException {
+      if (resp.getResponseCode() == 401) {
+        return true;
+      }
+      if (!EXPECTED_CONTENT_TYPE.equals(fetch.getSingleHeader(resp, "Content-Type"))) {
+        return false;
+      }
+      response = resp;
+      body = fetch.getUtf8ResponseBody(resp, EXPECTED_CONTENT_TYPE);
+      JSONObject error;
+      try {
+        error = getEnvelopeError(body);
+      } catch (JSONException e) {
+        // Reported when the response is parsed.
+        return false;
+      }
+      return error != null && error.optInt("code") == 401;
+    }
+
+    ParsedResponse getParsed(FetchResponse resp) throws IOException {
+      if (response != resp) {
+        response = resp;
+        body = fetch.getUtf8ResponseBody(resp, EXPECTED_CONTENT_TYPE);
+      }
+      return parseJsonResponseBody(resp, body);
+    }
+  }
+
+  /**
+   * Returns the error member of the single item of a response body, or null
+   * if it has none.  The other members are skipped without being parsed.
+   */
+  private static JSONObject getEnvelopeError(String body) throws JSONException {
+    int i = skipSpace(body, 0);
+    if (!body.startsWith("[", i)) {
+      return null;
+    }
+    i = skipSpace(body, i + 1);
+    if (!body.startsWith("{", i)) {
+      return null;
+    }
+    i++;
+    for (;;) {
+      i = skipSpace(body, i);
+      if (!body.startsWith("\"", i)) {
+        return null;
+      }
+      int nameEnd = skipValue(body, i);
+      // Member names of the envelope have no escapes.
+      String name = body.substring(i + 1, nameEnd - 1);
+      i = skipSpace(body, nameEnd);
+      if (!body.startsWith(":", i)) {
+        throw new JSONException("Expected ':' at " + i);
+      }
+      i = skipSpace(body, i + 1);
+      int valueEnd = skipValue(body, i);
+      if ("error".equals(name)) {
+        Object error = new JSONTokener(body.substring(i, valueEnd)).nextValue();
+        return error instanceof JSONObject ? (JSONObject) error : null;
+      }
+      i = skipSpace(body, valueEnd);
+      if (!body.startsWith(",", i)) {
+        return null;
+      }
+      i++;
+    }
+  }
+
+  private static int skipSpace(String body, int i) {
+    while (i < body.length() && Character.isWhitespace(body.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  /** Returns the index after the JSON value starting at {@code start}. */
+  private static int skipValue(String body, int start) throws JSONException {
+    int depth = 0;
+    for (int i = start; i < body.length(); i++) {
+      char c = body.charAt(i);
+      if (c == '"') {
+        for (i++; i < body.length() && body.charAt(i) != '"'; i++) {
+          if (body.charAt(i) == '\\') {
+            i++;
           }
         }
-      };
+        if (i >= body.length()) {
+          break;
+        }
+        if (depth == 0) {
+          return i + 1;
+        }
+      } else if (c == '{' || c == '[') {
+        depth++;
+      } else if (c == '}' || c == ']' || c == ',') {
+        if (depth == 0) {
+          // End of a number or literal.
+          return i;
+        }
+        if (c != ',' && --depth == 0) {
+          return i + 1;
+        }
+      }
+    }
+    throw new JSONException("Unterminated value at " + start);
+  }
 
   // Example of the kind of search request body that we send:
   // [{"id":"op_id",
@@ -148,11 +280,10 @@ public class RobotApi {
   //  }
   // ]
 
-  private JSONObject parseJsonResponseBody(HTTPResponse resp) throws IOException {
+  private ParsedResponse parseJsonResponseBody(FetchResponse resp, String body) {
     // The response looks like this:
     // [{"id":"op_id", "data":X}]
     // We return the single item in this array.
-    String body = fetch.getUtf8ResponseBody(resp, EXPECTED_CONTENT_TYPE);
     try {
       JSONArray items = new JSONArray(body);
       if (items.length() != 1) {
@@ -162,36 +293,14 @@ public class RobotApi {
       if (!OP_ID.equals(item.getString("id"))) {
         throw new RuntimeException("Unexpected id: " + item);
       }
-      return item;
+      return new ParsedResponse(resp, body, item);
     } catch (JSONException e) {
       throw new RuntimeException("JSONException parsing response: " + body, e);
     }
   }
 
   private JSONObject callRobotApi(String method, Map<String, Object> params) throws IOException {
-    JSONArray ops = new JSONArray();
-    try {
-      JSONObject jsonParams = new JSONObject();
-      for (Map.Entry<String, Object> e : params.entrySet()) {
-        jsonParams.put(e.getKey(), e.getValue());
-      }
-      JSONObject op = new JSONObject();
-      op.put("params", jsonParams);
-      op.put("method", method);
-      op.put("id", OP_ID);
-      ops.put(op);
-    } catch (JSONException e) {
-      throw new RuntimeException("Failed to construct JSON object", e);
-    }
-    HTTPRequest req = new HTTPRequest(new URL(baseUrl), HTTPMethod.POST,
-        FetchOptions.Builder.disallowTruncate().followRedirects()
-            .validateCertificate().setDeadline(20.0));
-    log.info("payload=" + ops);
-    req.setHeader(new HTTPHeader("Content-Type", "application/json; charset=UTF-8"));
-    req.setPayload(ops.toString().getBytes(Charsets.UTF_8));
-    System.out.println("req: " + ops.toString());
-    JSONObject result = parseJsonResponseBody(fetch.fetch(req, robotErrorCode401Detector));
-    log.info("result=" + ValueUtils.abbrev("" + result, 500));
+    JSONObject result = callRobotApi1(method, params);
     try {
       if (result.has("error")) {
         log.warning("Error result: " + result);
@@ -216,6 +325,15 @@ public class RobotApi {
   }
 
   private JSONObject callRobotApi1(String method, Map<String, Object> params) throws IOException {
+    return callRobotApi1(method, params, MIN_DEADLINE);
+  }
+
+  /**
+   * Calls a method with a deadline in seconds and returns the response item,
+   * which may be an error.
+   */
+  private JSONObject callRobotApi1(String method, Map<String, Object> params, double deadline)
+      throws IOException {
     JSONArray ops = new JSONArray();
     try {
       JSONObject jsonParams = new JSONObject();
@@ -232,14 +350,38 @@ public class RobotApi {
     }
     HTTPRequest req = new HTTPRequest(new URL(baseUrl), HTTPMethod.POST,
         FetchOptions.Builder.disallowTruncate().followRedirects()
-            .validateCertificate().setDeadline(20.0));
-    log.info("payload=" + ops);
+            .validateCertificate().setDeadline(deadline));
+    String payload = ops.toString();
+    log.info("payload=" + payload);
     req.setHeader(new HTTPHeader("Content-Type", "application/json; charset=UTF-8"));
-    req.setPayload(ops.toString().getBytes(Charsets.UTF_8));
-    System.out.println("req: " + ops.toString());
-    JSONObject result = parseJsonResponseBody(fetch.fetch(req, robotErrorCode401Detector));
-    log.info("result=" + ValueUtils.abbrev("" + result, 500));
-    return result;
+    req.setPayload(payload.getBytes(Charsets.UTF_8));
+    System.out.println("req: " + payload);
+    RobotErrorCode401Detector detector = new RobotErrorCode401Detector();
+    long start = System.nanoTime();
+    ParsedResponse parsed = detector.getParsed(fetch.fetch(req, detector));
+    recordThroughput(parsed.body.length(), System.nanoTime() - start);
+    log.info("result=" + ValueUtils.abbrev(parsed.body, 500));
+    return parsed.item;
+  }
+
+  private synchronized void recordThroughput(long bytes, long nanos) {
+    largestResponse = Math.max(largestResponse, bytes);
+    if (bytes < MIN_MEASURED_RESPONSE || nanos <= 0) {
+      return;
+    }
+    double rate = bytes * 1e9 / nanos;
+    bytesPerSecond = bytesPerSecond == 0 ? rate : 0.8 * bytesPerSecond + 0.2 * rate;
+  }
+
+  /**
+   * Deadline for fetching deltas: twice the time the largest response so far
+   * takes at the observed throughput, within the configured bounds.
+   */
+  private synchronized double getDeadline() {
+    if (bytesPerSecond == 0) {
+      return MIN_DEADLINE;
+    }
+    return Math.min(MAX_DEADLINE, Math.max(MIN_DEADLINE, 2 * largestResponse / bytesPerSecond));
   }
 
   private Map<String, Object> getFetchWaveParamMap(WaveletName waveletName, Object... extraParams) {
@@ -297,12 +439,103 @@ public class RobotApi {
   }
 
   /**
-   * Fetch wave with deltas
+   * Fetch wave with deltas.
+   *
+   * Google Wave answers a limited number of deltas per call, so the history
+   * is fetched in chunks, each starting at the version the previous one ends
+   * at, until a chunk has fewer deltas than the server answered in earlier
+   * chunks that were followed by more, or is empty while that is not known.
+   * The chunks are returned as one response with all the deltas.  A chunk
+   * which fails is tried again with a longer deadline, the chunks fetched
+   * before it are kept.
    * @author A. Kaplanov
    */
   public JSONObject fetchWaveWithDeltas(WaveId waveId, WaveletId waveletId) throws IOException {
-    return callRobotApi1(ROBOT_API_METHOD_FETCH_WAVE,
-        getFetchWaveParamMap(WaveletName.of(waveId, waveletId), "rawDeltasFromVersion", 0));
+    WaveletName waveletName = WaveletName.of(waveId, waveletId);
+    JSONObject first = null;
+    JSONArray deltas = null;
+    long version = 0;
+    int previousChunk = 0;
+    for (;;) {
+      JSONObject item = fetchDeltaChunk(waveletName, version);
+      JSONObject data = item.optJSONObject("data");
+      JSONArray chunk = data == null ? null : data.optJSONArray("rawDeltas");
+      if (first == null) {
+        first = item;
+        deltas = chunk;
+        if (chunk == null) {
+          // Error or empty response, returned as it is.
+          return item;
+        }
+      } else if (chunk == null) {
+        throw new IOException("No deltas from version " + version + " of " + waveletName + ": "
+            + ValueUtils.abbrev("" + item, 500));
+      } else {
+        for (int i = 0; i < chunk.length(); i++) {
+          deltas.put(chunk.opt(i));
+        }
+      }
+      if (chunk.length() == 0) {
+        return first;
+      }
+      if (previousChunk > 0) {
+        synchronized (this) {
+          if (deltasPerChunk == 0 || previousChunk < deltasPerChunk) {
+            deltasPerChunk = previousChunk;
+          }
+        }
+      }
+      if (chunk.length() < getDeltasPerChunk()) {
+        // No need to ask for the empty chunk after the last one.
+        return first;
+      }
+      previousChunk = chunk.length();
+      long next;
+      try {
+        next = getResultingVersion(chunk.getString(chunk.length() - 1));
+      } catch (JSONException e) {
+        throw new IOException("Malformed delta of " + waveletName, e);
+      }
+      if (next <= version) {
+        throw new IOException("Deltas of " + waveletName + " don't advance from version "
+            + version);
+      }
+      version = next;
+      log.info(waveletName + ": " + deltas.length() + " deltas, up to version " + version);
+    }
+  }
+
+  private JSONObject fetchDeltaChunk(WaveletName waveletName, long fromVersion) throws IOException {
+    double deadline = getDeadline();
+    for (int attempt = 1;; attempt++) {
+      try {
+        return callRobotApi1(ROBOT_API_METHOD_FETCH_WAVE,
+            getFetchWaveParamMap(waveletName, "rawDeltasFromVersion", fromVersion), deadline);
+      } catch (IOException e) {
+        if (attempt >= CHUNK_ATTEMPTS) {
+          throw e;
+        }
+        log.warning("Fetching " + waveletName + " from version " + fromVersion + " failed, attempt "
+            + attempt + " of " + CHUNK_ATTEMPTS + ": " + e);
+        deadline = Math.min(MAX_DEADLINE, deadline * 2);
+      }
+    }
+  }
+
+  private synchronized int getDeltasPerChunk() {
+    return deltasPerChunk;
+  }
+
+  /** Version after an exported delta. */
+  private static long getResultingVersion(String rawDelta) throws IOException {
+    ProtocolAppliedWaveletDelta applied =
+        ProtocolAppliedWaveletDelta.parseFrom(Base64.decodeBase64(rawDelta));
+    ProtocolWaveletDelta delta =
+        ProtocolWaveletDelta.parseFrom(applied.getSignedOriginalDelta().getDelta());
+    long appliedAt = applied.hasHashedVersionAppliedAt()
+        ? applied.getHashedVersionAppliedAt().getVersion() : delta.getHashedVersion().getVersion();
+    return appliedAt + (applied.hasOperationsApplied()
+        ? applied.getOperationsApplied() : delta.getOperationCount());
   }
   
   /**
@@ -316,6 +549,63 @@ public class RobotApi {
    */
   public List<RobotSearchDigest> search(String query, int startIndex, int maxResults)
       throws IOException {
+    JSONArray rawDigests = searchRaw(query, startIndex, maxResults);
+    ImmutableList.Builder<RobotSearchDigest> digests = ImmutableList.builder();
+    for (int i = 0; i < rawDigests.length(); i++) {
+      try {
+        JSONObject rawDigest = rawDigests.getJSONObject(i);
+        RobotSearchDigest digest = new RobotSearchDigestGsonImpl();
+        digest.setWaveId(WaveId.deserialise(rawDigest.getString("waveId")).serialise());
+        JSONArray rawParticipants = rawDigest.getJSONArray("participants");
+        for (int j = 0; j < rawParticipants.length(); j++) {
+          digest.addParticipant(rawParticipants.getString(j));
+        }
+        digest.setTitle(rawDigest.getString("title"));
+        digest.setSnippet(rawDigest.getString("snippet"));
+        digest.setLastModifiedMillis(rawDigest.getLong("lastModified"));
+        digest.setBlipCount(rawDigest.getInt("blipCount"));
+        digest.setUnreadBlipCount(rawDigest.getInt("unreadCount"));
+        digests.add(digest);
+      } catch (JSONException e) {
+        throw new RuntimeException("Failed to parse search digest: " + rawDigests.opt(i), e);
+      }
+    }
+    return digests.build();
+  }
+
+  /**
+   * Searches the user's waves as {@link #search(String, int, int)} does, but
+   * adds the results to {@code store} without making digest objects.
+   * Returns the numbers of the resulting waves in the store, including waves
+   * which were already there.
+   * @author A. Kaplanov
+   */
+  public int[] search(String query, int startIndex, int maxResults, DigestStore store)
+      throws IOException {
+    JSONArray rawDigests = searchRaw(query, startIndex, maxResults);
+    List<String> participants = new ArrayList<String>();
+    int[] waves = new int[rawDigests.length()];
+    for (int i = 0; i < rawDigests.length(); i++) {
+      try {
+        JSONObject rawDigest = rawDigests.getJSONObject(i);
+        participants.clear();
+        JSONArray rawParticipants = rawDigest.getJSONArray("participants");
+        for (int j = 0; j < rawParticipants.length(); j++) {
+          participants.add(rawParticipants.getString(j));
+        }
+        waves[i] = store.add(WaveId.deserialise(rawDigest.getString("waveId")).serialise(),
+            rawDigest.getString("title"), rawDigest.getString("snippet"), participants,
+            rawDigest.getLong("lastModified"), rawDigest.getInt("blipCount"),
+            rawDigest.getInt("unreadCount"));
+      } catch (JSONException e) {
+        throw new RuntimeException("Failed to parse search digest: " + rawDigests.opt(i), e);
+      }
+    }
+    return waves;
+  }
+
+  /** Calls search and returns the raw digests of the response. */
+  private JSONArray searchRaw(String query, int startIndex, int maxResults) throws IOException {
     log.info("search(" + query + ", " + startIndex + ", " + maxResults + ")");
     JSONObject response = callRobotApi(ROBOT_API_METHOD_SEARCH,
         ImmutableMap.<String, Object>of("query", query,
@@ -342,7 +632,6 @@ public class RobotApi {
     //     ]
     //   }
     // }
-    ImmutableList.Builder<RobotSearchDigest> digests = ImmutableList.builder();
     try {
       JSONObject results = response.getJSONObject("searchResults");
       try {
@@ -350,33 +639,13 @@ public class RobotApi {
           throw new RuntimeException("Mismatched numResults and digests array length: "
               + results.getInt("numResults") + " vs. " + results.getJSONArray("digests"));
         }
-        JSONArray rawDigests = results.getJSONArray("digests");
-        for (int i = 0; i < rawDigests.length(); i++) {
-          JSONObject rawDigest = rawDigests.getJSONObject(i);
-          try {
-            RobotSearchDigest digest = new RobotSearchDigestGsonImpl();
-            digest.setWaveId(WaveId.deserialise(rawDigest.getString("waveId")).serialise());
-            JSONArray rawParticipants = rawDigest.getJSONArray("participants");
-            for (int j = 0; j < rawParticipants.length(); j++) {
-              digest.addParticipant(rawParticipants.getString(j));
-            }
-            digest.setTitle(rawDigest.getString("title"));
-            digest.setSnippet(rawDigest.getString("snippet"));
-            digest.setLastModifiedMillis(rawDigest.getLong("lastModified"));
-            digest.setBlipCount(rawDigest.getInt("blipCount"));
-            digest.setUnreadBlipCount(rawDigest.getInt("unreadCount"));
-            digests.add(digest);
-          } catch (JSONException e) {
-            throw new RuntimeException("Failed to parse search digest: " + rawDigest, e);
-          }
-        }
+        return results.getJSONArray("digests");
       } catch (JSONException e) {
         throw new RuntimeException("Failed to parse search results: " + results, e);
       }
     } catch (JSONException e) {
       throw new RuntimeException("Failed to parse search response: " + response, e);
     }
-    return digests.build();
   }
 
   public void wiabImportWave(Object waveletData) throws IOException {
@@ -0,0 +1,273 @@
+package waveimport;
+
+import com.google.walkaround.proto.RobotSearchDigest;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+/**
+ * Export shared by several worker processes, on one or more hosts, with a
+ * common export directory.
+ *
+ * The work is split in two phases of units claimed through a
+ * {@link LeaseManager}: search windows of a month each, whose results are
+ * written to the coordination directory, then waves. A worker starts each
+ * phase at a different place, goes over the units not done, and waits for
+ * units leased by others until they are done or their leases expire.
+ * Before writing a wavelet the worker checks that it still holds the wave,
+ * so a wavelet is exported by one worker only.
+ *
+ * The lease timeout is taken from the {@code waveimport.lease.timeout}
+ * system property, in milliseconds.
+ *
+ * @author A. Kaplanov
+ */
+public class ShardedExport {
+
+    public static final String LEASE_TIMEOUT_PROPERTY = "waveimport.lease.timeout";
+    private static final long DEFAULT_LEASE_TIMEOUT = 60000;
+    private static final int PAGE_SIZE = 100;
+
+    // Searched months, as the single account export searches
+    private static final int FIRST_YEAR = 2000;
+    private static final int LAST_YEAR = 2012;
+
+    private static final String WINDOWS_DIR = "windows";
+
+    private final String clientId;
+    private final String clientSecret;
+    private final String userId;
+    private final String participant;
+    private final String refreshToken;
+    private final String accessToken;
+    private final String exportDir;
+    private final File coordinationDir;
+    private final long leaseTimeout;
+    private final LeaseManager leases;
+    private RobotApi api;
+
+    public ShardedExport(String clientId, String clientSecret, String userId, String participant, String refreshToken,
+            String accessToken, String exportDir, File coordinationDir) {
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.userId = userId;
+        this.participant = participant;
+        this.refreshToken = refreshToken;
+        this.accessToken = accessToken;
+        this.exportDir = exportDir;
+        this.coordinationDir = coordinationDir;
+        this.leaseTimeout = Long.getLong(LEASE_TIMEOUT_PROPERTY, DEFAULT_LEASE_TIMEOUT);
+        this.leases = new LeaseManager(coordinationDir, getWorkerId(), leaseTimeout);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 7 && args.length != 8) {
+            System.err.println("Use: ShardedExport <ClientId> <ClientSecret> <UserId> <Participant> <RefreshToken> <AccessToken> <ExportDir> [<CoordinationDir>]");
+            return;
+        }
+        File coordination_dir = new File(args.length == 8 ? args[7] : args[6] + "/_leases");
+        new ShardedExport(args[0], args[1], args[2], args[3], args[4], args[5], args[6], coordination_dir).run();
+    }
+
+    public void run() {
+        api = WaveExport.createRobotApi(WaveExport.getFetchService(), clientId, clientSecret,
+                userId, participant, refreshToken, accessToken);
+        System.out.println("Worker " + leases.getWorkerId());
+        leases.start();
+        try {
+            List<String> windows = new ArrayList<String>();
+            for (int year = FIRST_YEAR; year <= LAST_YEAR; year++) {
+                for (int month = 1; month <= 12; month++) {
+                    windows.add(String.format("window-%04d-%02d", year, month));
+                }
+            }
+            if (!runUnits(windows)) {
+                return;
+            }
+            List<String> waves = readWindows(windows);
+            System.out.println("Found " + waves.size() + " waves");
+            runUnits(waves);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            leases.stop();
+        }
+    }
+
+    /**
+     * Runs the units until all of them are done, or failed in this worker.
+     * Returns false if some units failed.
+     */
+    private boolean runUnits(List<String> units) throws InterruptedException {
+        Set<String> failed = new HashSet<String>();
+        List<String> pending = new ArrayList<String>(units);
+        // Workers start at different units and meet less.
+        Collections.rotate(pending, -Math.abs(leases.getWorkerId().hashCode() % Math.max(1, pending.size())));
+        while (!pending.isEmpty()) {
+            List<String> left = new ArrayList<String>();
+            for (String unit : pending) {
+                try {
+                    if (leases.isDone(unit)) {
+                        continue;
+                    }
+                    if (!leases.tryAcquire(unit)) {
+                        left.add(unit);
+                        continue;
+                    }
+                    if (runUnit(unit)) {
+                        leases.complete(unit);
+                    } else {
+                        // Lease lost, the unit is finished by its new owner.
+                        leases.release(unit);
+                        left.add(unit);
+                    }
+                    continue;
+                } catch (IOException ex) {
+                    System.out.println("Error " + unit + " " + ex);
+                } catch (RuntimeException ex) {
+                    System.out.println("Error " + unit + " " + ex);
+                }
+                leases.release(unit);
+                failed.add(unit);
+            }
+            pending = left;
+            if (!pending.isEmpty()) {
+                System.out.println(pending.size() + " units leased by other workers, waiting...");
+                Thread.sleep(leaseTimeout / 3);
+            }
+        }
+        if (!failed.isEmpty()) {
+            System.out.println("Failed count " + failed.size());
+        }
+        return failed.isEmpty();
+    }
+
+    /** Returns false if the lease of the unit was lost before it was done. */
+    private boolean runUnit(String unit) throws IOException {
+        if (unit.startsWith("window-")) {
+            return searchWindow(unit);
+        }
+        return exportWave(unit.substring("wave-".length()), unit);
+    }
+
+    /** Searches a month and writes the wave ids found, saving their digests. */
+    private boolean searchWindow(String unit) throws IOException {
+        int year = Integer.parseInt(unit.substring("window-".length(), "window-".length() + 4));
+        int month = Integer.parseInt(unit.substring("window-".length() + 5));
+        SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, 1);
+        // Overlaps neighbour windows by a day, whether the bounds are inclusive or not.
+        calendar.add(Calendar.DAY_OF_MONTH, -1);
+        String after = format.format(calendar.getTime());
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        calendar.add(Calendar.MONTH, 1);
+        String before = format.format(calendar.getTime());
+        DigestStore digests = new DigestStore();
+        for (int i = 0;;) {
+            int count = api.search("after:" + after + " before:" + before, i, PAGE_SIZE, digests).length;
+            if (count == 0) {
+                break;
+            }
+            i += count;
+        }
+        File dir = new File(coordinationDir, WINDOWS_DIR);
+        dir.mkdirs();
+        File file = new File(dir, unit);
+        File tmp = new File(dir, unit + "." + leases.getWorkerId());
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "utf8");
+        try {
+            for (RobotSearchDigest digest : digests) {
+                WaveExport.saveDigest(exportDir, digest);
+                writer.write(digest.getWaveId() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!leases.isHeld(unit) || (file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+            tmp.delete();
+            return false;
+        }
+        System.out.println(unit + ": " + digests.size() + " waves");
+        return true;
+    }
+
+    /** Returns wave units of the ids found by all windows, without repeats. */
+    private List<String> readWindows(List<String> windows) throws IOException {
+        List<String> waves = new ArrayList<String>();
+        for (String window : windows) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(new File(new File(coordinationDir, WINDOWS_DIR), window)), "utf8"));
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (!line.isEmpty()) {
+                        waves.add("wave-" + line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        Collections.sort(waves);
+        List<String> unique = new ArrayList<String>(waves.size());
+        for (String wave : waves) {
+            if (unique.isEmpty() || !unique.get(unique.size() - 1).equals(wave)) {
+                unique.add(wave);
+            }
+        }
+        return unique;
+    }
+
+    private boolean exportWave(String waveId, String unit) throws IOException {
+        WaveId wave_id = WaveId.deserialise(waveId);
+        for (WaveletId wavelet_id : api.getWaveView(wave_id)) {
+            File file = WaveExport.getExportFile(exportDir, waveId, wavelet_id);
+            if (file.exists()) {
+                System.out.println("Skiped " + file.getName());
+                continue;
+            }
+            if (!leases.isHeld(unit)) {
+                System.out.println("Lost " + unit);
+                return false;
+            }
+            System.out.println("Exporting " + file.getName() + "...");
+            String export = api.fetchWaveWithDeltas(wave_id, wavelet_id).toString();
+            // The lease may have expired during a long fetch, and the wavelet be exported by another worker.
+            if (!leases.isHeld(unit)) {
+                System.out.println("Lost " + unit);
+                return false;
+            }
+            WaveExport.writeExport(export, file);
+        }
+        return true;
+    }
+
+    /** Host and process of this worker, made unique within the process. */
+    private static String getWorkerId() {
+        // pid@host
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int index = name.indexOf('@');
+        String id = index == -1 ? name : name.substring(index + 1) + "-" + name.substring(0, index);
+        return id.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + Long.toHexString(System.nanoTime() & 0xffffff);
+    }
+}
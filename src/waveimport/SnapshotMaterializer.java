@@ -0,0 +1,517 @@
+package waveimport;
+
+import com.google.walkaround.proto.Proto.ProtocolAppliedWaveletDelta;
+import com.google.walkaround.proto.Proto.ProtocolDocumentOperation;
+import com.google.walkaround.proto.Proto.ProtocolDocumentOperation.Component;
+import com.google.walkaround.proto.Proto.ProtocolWaveletDelta;
+import com.google.walkaround.proto.Proto.ProtocolWaveletOperation;
+import com.google.walkaround.proto.Walkaround.WalkaroundDocumentSnapshot;
+import com.google.walkaround.proto.Walkaround.WalkaroundWaveletSnapshot;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.waveprotocol.wave.model.document.operation.AnnotationBoundaryMap;
+import org.waveprotocol.wave.model.document.operation.Attributes;
+import org.waveprotocol.wave.model.document.operation.AttributesUpdate;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.DocOpCursor;
+import org.waveprotocol.wave.model.document.operation.algorithm.DocOpCollector;
+import org.waveprotocol.wave.model.document.operation.impl.AnnotationBoundaryMapImpl;
+import org.waveprotocol.wave.model.document.operation.impl.AttributesImpl;
+import org.waveprotocol.wave.model.document.operation.impl.AttributesUpdateImpl;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+
+/**
+ * Builds walkaround snapshots of exported wavelets without a wave server.
+ *
+ * The exported deltas are applied in memory: participants are added and
+ * removed, and the operations of each document are composed into its
+ * content. Documents also get the last author, the contributors and the
+ * version and time of their last change. Besides the final state,
+ * snapshots can be taken at given versions, each of them is the state after
+ * the last delta ending at or before the version.
+ *
+ * Export files are read in parallel, each snapshot is written to
+ * {@code <waveId>#<waveletId>#snapshot}, or
+ * {@code <waveId>#<waveletId>#snapshot-<version>} for a given version, as a
+ * serialized {@link WalkaroundWaveletSnapshot}. Snapshots newer than their
+ * export file are not built again.
+ *
+ * @author A. Kaplanov
+ */
+public class SnapshotMaterializer {
+
+    static final String SNAPSHOT_SUFFIX = "#snapshot";
+
+    private final File exportDir;
+    private final File snapshotDir;
+    private final int threads;
+    private final long[] versions;
+
+    public SnapshotMaterializer(File exportDir, File snapshotDir, int threads, long[] versions) {
+        this.exportDir = exportDir;
+        this.snapshotDir = snapshotDir;
+        this.threads = threads;
+        this.versions = versions.clone();
+        Arrays.sort(this.versions);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Use: SnapshotMaterializer <ExportDir> <SnapshotDir> [<Threads> [<Version>,...]]");
+            return;
+        }
+        int threads = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        List<Long> list = new ArrayList<Long>();
+        if (args.length == 4) {
+            StringTokenizer st = new StringTokenizer(args[3], ",");
+            while (st.hasMoreTokens()) {
+                list.add(Long.parseLong(st.nextToken().trim()));
+            }
+        }
+        long[] versions = new long[list.size()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = list.get(i);
+        }
+        try {
+            new SnapshotMaterializer(new File(args[0]), new File(args[1]), threads, versions).run();
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    public void run() throws IOException {
+        if (!snapshotDir.exists() && !snapshotDir.mkdirs()) {
+            throw new IOException("Can't create directory " + snapshotDir);
+        }
+        File[] files = exportDir.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith("#json");
+            }
+        });
+        if (files == null) {
+            throw new IOException("Can't list " + exportDir);
+        }
+        Arrays.sort(files);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int built = 0;
+        int skipped = 0;
+        int failed = 0;
+        try {
+            CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+            int next = 0;
+            int pending = 0;
+            while (next < files.length || pending != 0) {
+                // Bounds wavelets held in memory
+                while (next < files.length && pending < threads * 4) {
+                    final File file = files[next++];
+                    completion.submit(new Callable<Boolean>() {
+
+                        @Override
+                        public Boolean call() {
+                            try {
+                                return materializeFile(file);
+                            } catch (Exception ex) {
+                                System.err.println("Can't build snapshot of " + file.getName() + ": " + ex);
+                                return null;
+                            }
+                        }
+                    });
+                    pending++;
+                }
+                Boolean result;
+                try {
+                    result = completion.take().get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ex);
+                } catch (ExecutionException ex) {
+                    throw new IOException(ex.getCause());
+                } finally {
+                    pending--;
+                }
+                if (result == null) {
+                    failed++;
+                } else if (result) {
+                    built++;
+                } else {
+                    skipped++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("Built count " + built);
+        System.out.println("Skipped count " + skipped);
+        System.out.println("Failed count " + failed);
+    }
+
+    /** Returns false if the snapshots of the file are up to date. */
+    private boolean materializeFile(File file) throws IOException {
+        String base = file.getName().substring(0, file.getName().length() - "#json".length());
+        List<File> outputs = new ArrayList<File>();
+        for (long version : versions) {
+            outputs.add(new File(snapshotDir, base + SNAPSHOT_SUFFIX + "-" + version));
+        }
+        outputs.add(new File(snapshotDir, base + SNAPSHOT_SUFFIX));
+        boolean up_to_date = true;
+        for (File output : outputs) {
+            up_to_date &= output.lastModified() >= file.lastModified();
+        }
+        if (up_to_date) {
+            return false;
+        }
+        List<WalkaroundWaveletSnapshot> snapshots;
+        try {
+            snapshots = materialize(readDeltas(file), versions);
+        } catch (RuntimeException ex) {
+            // Operations which don't compose
+            throw new IOException(ex);
+        }
+        for (int i = 0; i < outputs.size(); i++) {
+            write(snapshots.get(i), outputs.get(i));
+        }
+        return true;
+    }
+
+    /** Parses the deltas of an export file. */
+    static List<ProtocolAppliedWaveletDelta> readDeltas(File file) throws IOException {
+        try {
+            JSONArray raw_deltas = new JSONObject(ArchiveIndexer.readFile(file)).getJSONObject("data")
+                    .getJSONArray("rawDeltas");
+            List<ProtocolAppliedWaveletDelta> deltas = new ArrayList<ProtocolAppliedWaveletDelta>(raw_deltas.length());
+            for (int i = 0; i < raw_deltas.length(); i++) {
+                deltas.add(ProtocolAppliedWaveletDelta.parseFrom(Base64.decodeBase64(raw_deltas.getString(i))));
+            }
+            return deltas;
+        } catch (JSONException ex) {
+            throw new IOException(file.getName() + ": " + ex, ex);
+        }
+    }
+
+    private static void write(WalkaroundWaveletSnapshot snapshot, File file) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            snapshot.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp + " to " + file);
+        }
+    }
+
+    /** State of a document while deltas are applied. */
+    private static final class DocumentState {
+
+        private DocOpCollector collector = new DocOpCollector();
+        private String author;
+        private final Set<String> contributors = new LinkedHashSet<String>();
+        private long lastModifiedVersion;
+        private long lastModifiedTime;
+    }
+
+    /**
+     * Applies a history of deltas, returns the snapshots at the given
+     * versions, in ascending order, followed by the final snapshot. A version
+     * before the end of the first delta gives the empty wavelet.
+     */
+    public static List<WalkaroundWaveletSnapshot> materialize(List<ProtocolAppliedWaveletDelta> deltas,
+            long[] versions) throws IOException {
+        if (deltas.isEmpty()) {
+            throw new IOException("No deltas");
+        }
+        long[] stops = versions.clone();
+        Arrays.sort(stops);
+        List<WalkaroundWaveletSnapshot> snapshots = new ArrayList<WalkaroundWaveletSnapshot>();
+        ProtocolAppliedWaveletDelta first = deltas.get(0);
+        String creator = ProtocolWaveletDelta.parseFrom(first.getSignedOriginalDelta().getDelta()).getAuthor();
+        long creation_time = first.getApplicationTimestamp();
+        long version = 0;
+        long last_modified_time = creation_time;
+        Set<String> participants = new LinkedHashSet<String>();
+        Map<String, DocumentState> documents = new TreeMap<String, DocumentState>();
+        WalkaroundWaveletSnapshot last = null;
+        int stop = 0;
+        for (ProtocolAppliedWaveletDelta applied_delta : deltas) {
+            ProtocolWaveletDelta delta = ProtocolWaveletDelta.parseFrom(applied_delta.getSignedOriginalDelta().getDelta());
+            long applied_at = applied_delta.hasHashedVersionAppliedAt()
+                    ? applied_delta.getHashedVersionAppliedAt().getVersion() : delta.getHashedVersion().getVersion();
+            long end_version = applied_at + (applied_delta.hasOperationsApplied()
+                    ? applied_delta.getOperationsApplied() : delta.getOperationCount());
+            // Snapshots at versions this delta goes past
+            for (; stop < stops.length && stops[stop] < end_version; stop++) {
+                if (last == null) {
+                    last = snapshot(creator, creation_time, version, last_modified_time, participants, documents);
+                }
+                snapshots.add(last);
+            }
+            long time = applied_delta.getApplicationTimestamp();
+            for (ProtocolWaveletOperation op : delta.getOperationList()) {
+                if (op.hasAddParticipant()) {
+                    participants.add(op.getAddParticipant());
+                } else if (op.hasRemoveParticipant()) {
+                    participants.remove(op.getRemoveParticipant());
+                } else if (op.hasMutateDocument()) {
+                    String document_id = op.getMutateDocument().getDocumentId();
+                    DocumentState document = documents.get(document_id);
+                    if (document == null) {
+                        document = new DocumentState();
+                        documents.put(document_id, document);
+                    }
+                    document.collector.add(deserialize(op.getMutateDocument().getDocumentOperation()));
+                    document.author = delta.getAuthor();
+                    document.contributors.add(delta.getAuthor());
+                    document.lastModifiedVersion = end_version;
+                    document.lastModifiedTime = time;
+                }
+            }
+            version = end_version;
+            last_modified_time = time;
+            last = null;
+        }
+        WalkaroundWaveletSnapshot final_snapshot =
+                snapshot(creator, creation_time, version, last_modified_time, participants, documents);
+        for (; stop < stops.length; stop++) {
+            snapshots.add(final_snapshot);
+        }
+        snapshots.add(final_snapshot);
+        return snapshots;
+    }
+
+    /**
+     * Takes a snapshot of the current state. The composed content replaces
+     * the collected operations of each document, so later snapshots compose
+     * only what was applied since.
+     */
+    private static WalkaroundWaveletSnapshot snapshot(String creator, long creationTime, long version,
+            long lastModifiedTime, Set<String> participants, Map<String, DocumentState> documents) {
+        WalkaroundWaveletSnapshot.Builder snapshot = WalkaroundWaveletSnapshot.newBuilder()
+                .setCreator(creator)
+                .setCreationTime(creationTime)
+                .setVersion(version)
+                .setLastModifiedTime(lastModifiedTime)
+                .addAllParticipant(participants);
+        for (Map.Entry<String, DocumentState> entry : documents.entrySet()) {
+            DocumentState document = entry.getValue();
+            DocOp content = document.collector.composeAll();
+            document.collector = new DocOpCollector();
+            document.collector.add(content);
+            snapshot.addDocument(WalkaroundDocumentSnapshot.newBuilder()
+                    .setDocumentId(entry.getKey())
+                    .setAuthor(document.author)
+                    .addAllContributor(document.contributors)
+                    .setLastModifiedVersion(document.lastModifiedVersion)
+                    .setLastModifiedTime(document.lastModifiedTime)
+                    .setContent(serialize(content)));
+        }
+        return snapshot.build();
+    }
+
+    /** Converts a document operation of an exported delta to the wave model. */
+    static DocOp deserialize(ProtocolDocumentOperation op) {
+        DocOpBuilder builder = new DocOpBuilder();
+        for (Component component : op.getComponentList()) {
+            if (component.hasAnnotationBoundary()) {
+                Component.AnnotationBoundary boundary = component.getAnnotationBoundary();
+                if (boundary.hasEmpty() && boundary.getEmpty()) {
+                    builder.annotationBoundary(AnnotationBoundaryMapImpl.EMPTY_MAP);
+                } else {
+                    String[] ends = boundary.getEndList().toArray(new String[boundary.getEndCount()]);
+                    String[] keys = new String[boundary.getChangeCount()];
+                    String[] old_values = new String[keys.length];
+                    String[] new_values = new String[keys.length];
+                    for (int i = 0; i < keys.length; i++) {
+                        Component.KeyValueUpdate change = boundary.getChange(i);
+                        keys[i] = change.getKey();
+                        old_values[i] = change.hasOldValue() ? change.getOldValue() : null;
+                        new_values[i] = change.hasNewValue() ? change.getNewValue() : null;
+                    }
+                    builder.annotationBoundary(new AnnotationBoundaryMapImpl(ends, keys, old_values, new_values));
+                }
+            } else if (component.hasCharacters()) {
+                builder.characters(component.getCharacters());
+            } else if (component.hasElementStart()) {
+                builder.elementStart(component.getElementStart().getType(),
+                        attributes(component.getElementStart().getAttributeList()));
+            } else if (component.hasElementEnd()) {
+                builder.elementEnd();
+            } else if (component.hasRetainItemCount()) {
+                builder.retain(component.getRetainItemCount());
+            } else if (component.hasDeleteCharacters()) {
+                builder.deleteCharacters(component.getDeleteCharacters());
+            } else if (component.hasDeleteElementStart()) {
+                builder.deleteElementStart(component.getDeleteElementStart().getType(),
+                        attributes(component.getDeleteElementStart().getAttributeList()));
+            } else if (component.hasDeleteElementEnd()) {
+                builder.deleteElementEnd();
+            } else if (component.hasReplaceAttributes()) {
+                Component.ReplaceAttributes replace = component.getReplaceAttributes();
+                builder.replaceAttributes(attributes(replace.getOldAttributeList()),
+                        attributes(replace.getNewAttributeList()));
+            } else if (component.hasUpdateAttributes()) {
+                List<Component.KeyValueUpdate> updates = component.getUpdateAttributes().getAttributeUpdateList();
+                String[] triples = new String[updates.size() * 3];
+                for (int i = 0; i < updates.size(); i++) {
+                    Component.KeyValueUpdate update = updates.get(i);
+                    triples[i * 3] = update.getKey();
+                    triples[i * 3 + 1] = update.hasOldValue() ? update.getOldValue() : null;
+                    triples[i * 3 + 2] = update.hasNewValue() ? update.getNewValue() : null;
+                }
+                builder.updateAttributes(new AttributesUpdateImpl(triples));
+            } else {
+                throw new IllegalArgumentException("Unknown document operation component " + component);
+            }
+        }
+        return builder.build();
+    }
+
+    private static Attributes attributes(List<Component.KeyValuePair> pairs) {
+        if (pairs.isEmpty()) {
+            return AttributesImpl.EMPTY_MAP;
+        }
+        Map<String, String> map = new HashMap<String, String>();
+        for (Component.KeyValuePair pair : pairs) {
+            map.put(pair.getKey(), pair.getValue());
+        }
+        return new AttributesImpl(map);
+    }
+
+    /** Converts a document operation of the wave model to the export format. */
+    static ProtocolDocumentOperation serialize(DocOp op) {
+        final ProtocolDocumentOperation.Builder output = ProtocolDocumentOperation.newBuilder();
+        op.apply(new DocOpCursor() {
+
+            @Override
+            public void retain(int itemCount) {
+                output.addComponent(Component.newBuilder().setRetainItemCount(itemCount));
+            }
+
+            @Override
+            public void characters(String characters) {
+                output.addComponent(Component.newBuilder().setCharacters(characters));
+            }
+
+            @Override
+            public void deleteCharacters(String characters) {
+                output.addComponent(Component.newBuilder().setDeleteCharacters(characters));
+            }
+
+            @Override
+            public void elementStart(String type, Attributes attributes) {
+                output.addComponent(Component.newBuilder().setElementStart(element(type, attributes)));
+            }
+
+            @Override
+            public void deleteElementStart(String type, Attributes attributes) {
+                output.addComponent(Component.newBuilder().setDeleteElementStart(element(type, attributes)));
+            }
+
+            @Override
+            public void elementEnd() {
+                output.addComponent(Component.newBuilder().setElementEnd(true));
+            }
+
+            @Override
+            public void deleteElementEnd() {
+                output.addComponent(Component.newBuilder().setDeleteElementEnd(true));
+            }
+
+            @Override
+            public void replaceAttributes(Attributes oldAttributes, Attributes newAttributes) {
+                Component.ReplaceAttributes.Builder replace = Component.ReplaceAttributes.newBuilder();
+                if (oldAttributes.isEmpty() && newAttributes.isEmpty()) {
+                    replace.setEmpty(true);
+                } else {
+                    for (Map.Entry<String, String> entry : oldAttributes.entrySet()) {
+                        replace.addOldAttribute(keyValuePair(entry.getKey(), entry.getValue()));
+                    }
+                    for (Map.Entry<String, String> entry : newAttributes.entrySet()) {
+                        replace.addNewAttribute(keyValuePair(entry.getKey(), entry.getValue()));
+                    }
+                }
+                output.addComponent(Component.newBuilder().setReplaceAttributes(replace));
+            }
+
+            @Override
+            public void updateAttributes(AttributesUpdate update) {
+                Component.UpdateAttributes.Builder updates = Component.UpdateAttributes.newBuilder();
+                if (update.changeSize() == 0) {
+                    updates.setEmpty(true);
+                } else {
+                    for (int i = 0; i < update.changeSize(); i++) {
+                        updates.addAttributeUpdate(keyValueUpdate(update.getChangeKey(i), update.getOldValue(i),
+                                update.getNewValue(i)));
+                    }
+                }
+                output.addComponent(Component.newBuilder().setUpdateAttributes(updates));
+            }
+
+            @Override
+            public void annotationBoundary(AnnotationBoundaryMap map) {
+                Component.AnnotationBoundary.Builder boundary = Component.AnnotationBoundary.newBuilder();
+                if (map.endSize() == 0 && map.changeSize() == 0) {
+                    boundary.setEmpty(true);
+                } else {
+                    for (int i = 0; i < map.endSize(); i++) {
+                        boundary.addEnd(map.getEndKey(i));
+                    }
+                    for (int i = 0; i < map.changeSize(); i++) {
+                        boundary.addChange(keyValueUpdate(map.getChangeKey(i), map.getOldValue(i),
+                                map.getNewValue(i)));
+                    }
+                }
+                output.addComponent(Component.newBuilder().setAnnotationBoundary(boundary));
+            }
+        });
+        return output.build();
+    }
+
+    private static Component.ElementStart element(String type, Attributes attributes) {
+        Component.ElementStart.Builder element = Component.ElementStart.newBuilder().setType(type);
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            element.addAttribute(keyValuePair(entry.getKey(), entry.getValue()));
+        }
+        return element.build();
+    }
+
+    private static Component.KeyValuePair keyValuePair(String key, String value) {
+        return Component.KeyValuePair.newBuilder().setKey(key).setValue(value).build();
+    }
+
+    private static Component.KeyValueUpdate keyValueUpdate(String key, String oldValue, String newValue) {
+        Component.KeyValueUpdate.Builder update = Component.KeyValueUpdate.newBuilder().setKey(key);
+        if (oldValue != null) {
+            update.setOldValue(oldValue);
+        }
+        if (newValue != null) {
+            update.setNewValue(newValue);
+        }
+        return update.build();
+    }
+}
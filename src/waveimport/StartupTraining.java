@@ -0,0 +1,62 @@
+package waveimport;
+
+import com.google.common.io.CharStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import org.waveprotocol.wave.model.id.WaveId;
+
+/**
+ * Run by the build to record the classes the tools load until their first
+ * robot API calls, into the class data archive the run scripts start with.
+ *
+ * Makes a search and a wave view call of a {@link RobotApi} against a local
+ * server answering like Google Wave, so no account or network is needed.
+ *
+ * @author A. Kaplanov
+ */
+public class StartupTraining {
+
+    private static final String SEARCH_RESPONSE = "[{\"id\":\"op_id\",\"data\":{\"searchResults\":"
+            + "{\"query\":\"q\",\"numResults\":1,\"digests\":[{\"waveId\":\"example.com!w+a\",\"title\":\"a\","
+            + "\"participants\":[\"a@example.com\"],\"lastModified\":1,\"snippet\":\"a\",\"blipCount\":1,"
+            + "\"unreadCount\":0}]}}}]";
+    private static final String WAVE_VIEW_RESPONSE = "[{\"id\":\"op_id\",\"data\":{\"waveletIds\":"
+            + "[\"example.com!conv+root\"]}}]";
+
+    public static void main(String[] args) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String request = CharStreams.toString(new InputStreamReader(exchange.getRequestBody(), "utf8"));
+                byte[] response = (request.contains("wave.robot.search") ? SEARCH_RESPONSE : WAVE_VIEW_RESPONSE)
+                        .getBytes("utf8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(response);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        server.start();
+        try {
+            RobotApi api = WaveExport.createRobotApi(WaveExport.getFetchService(), "client", "secret", "user",
+                    "user@example.com", "refresh", "access", "http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            DigestStore digests = new DigestStore();
+            api.search(WaveExport.SEARCH_QUERY, 0, 100, digests);
+            api.getWaveView(WaveId.deserialise(digests.getDigest(0).getWaveId()));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package waveimport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A POST request whose response can be read while the body is still being
+ * sent. {@link java.net.HttpURLConnection} only reads the response after
+ * the whole body is sent, so a server answering as it reads would wait for
+ * a reader that never comes once the connection buffers are full.
+ *
+ * Speaks HTTP/1.1 with a chunked body over a plain or TLS socket, one
+ * request per connection, without proxies. The body is written by one
+ * thread and the response read by another. The certificate of a TLS peer
+ * must be issued to the host of the URL.
+ *
+ * @author A. Kaplanov
+ */
+class StreamingPost {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Types of the subject alternative names of a certificate.
+    private static final int DNS_NAME = 2;
+    private static final int IP_ADDRESS = 7;
+    private static final Pattern COMMON_NAME = Pattern.compile("(?:^|,)\\s*CN=([^,]*)", Pattern.CASE_INSENSITIVE);
+
+    private final Socket socket;
+    private final ChunkedOutputStream out;
+    private final InputStream in;
+    private int responseCode = -1;
+    private String responseMessage;
+    private InputStream body;
+
+    /**
+     * Connects and sends the head of the request. Connecting, and each read of
+     * the response, fail after the timeout.
+     */
+    StreamingPost(URL url, Map<String, String> headers, int timeoutMillis) throws IOException {
+        boolean https = "https".equals(url.getProtocol());
+        if (!https && !"http".equals(url.getProtocol())) {
+            throw new IOException("Unsupported protocol " + url);
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket plain = new Socket();
+        try {
+            plain.connect(new InetSocketAddress(url.getHost(), port), timeoutMillis);
+            plain.setSoTimeout(timeoutMillis);
+            if (https) {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(plain, url.getHost(), port, true);
+                plain = ssl;
+                ssl.startHandshake();
+                verifyHost(ssl, url.getHost());
+            }
+        } catch (IOException ex) {
+            plain.close();
+            throw ex;
+        }
+        socket = plain;
+        try {
+            OutputStream socket_out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            Map<String, String> request_headers = new LinkedHashMap<String, String>();
+            request_headers.put("Host", url.getPort() != -1 ? url.getHost() + ":" + url.getPort() : url.getHost());
+            request_headers.put("Transfer-Encoding", "chunked");
+            request_headers.put("Connection", "close");
+            request_headers.putAll(headers);
+            StringBuilder head = new StringBuilder();
+            head.append("POST ").append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+            for (Map.Entry<String, String> header : request_headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            head.append("\r\n");
+            socket_out.write(head.toString().getBytes("ISO-8859-1"));
+            socket_out.flush();
+            out = new ChunkedOutputStream(socket_out);
+            in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /** Body of the request, closing it ends the request but not the response. */
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /** Waits for the status line and headers of the response. */
+    synchronized int getResponseCode() throws IOException {
+        if (responseCode == -1) {
+            readResponseHead();
+        }
+        return responseCode;
+    }
+
+    synchronized String getResponseMessage() throws IOException {
+        getResponseCode();
+        return responseMessage;
+    }
+
+    synchronized InputStream getInputStream() throws IOException {
+        getResponseCode();
+        return body;
+    }
+
+    /** Closes the connection, also unblocking the reading and writing threads. */
+    void close() throws IOException {
+        socket.close();
+    }
+
+    private void readResponseHead() throws IOException {
+        String status;
+        List<String> headers = new ArrayList<String>();
+        do {
+            // Interim 1xx responses are followed by the final one.
+            status = readLine(in);
+            headers.clear();
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                headers.add(line);
+            }
+        } while (status.matches("HTTP/\\S+ 1\\d\\d.*"));
+        String[] parts = status.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + status);
+        }
+        responseCode = parseInt(parts[1]);
+        responseMessage = parts.length == 3 ? parts[2] : "";
+        body = in;
+        for (String line : headers) {
+            int colon = line.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if ("Transfer-Encoding".equalsIgnoreCase(name) && value.toLowerCase().contains("chunked")) {
+                body = new ChunkedInputStream(in);
+                break;
+            } else if ("Content-Length".equalsIgnoreCase(name)) {
+                body = new LimitedInputStream(in, parseInt(value));
+            }
+        }
+        // Otherwise the body ends with the connection.
+    }
+
+    /**
+     * Checks that the certificate of the peer names the host, as
+     * {@link javax.net.ssl.HttpsURLConnection} does; its default
+     * {@link javax.net.ssl.HostnameVerifier} is only asked after that check
+     * fails, and rejects every host.
+     */
+    private static void verifyHost(SSLSocket socket, String host) throws IOException {
+        Certificate[] chain = socket.getSession().getPeerCertificates();
+        if (chain.length == 0 || !(chain[0] instanceof X509Certificate)) {
+            throw new SSLPeerUnverifiedException("No certificate of " + host);
+        }
+        X509Certificate certificate = (X509Certificate) chain[0];
+        String name = host.toLowerCase();
+        boolean address = name.matches("[0-9.]+") || name.contains(":");
+        boolean dns_names = false;
+        Collection<List<?>> alternative_names;
+        try {
+            alternative_names = certificate.getSubjectAlternativeNames();
+        } catch (CertificateParsingException ex) {
+            throw new SSLPeerUnverifiedException("Bad certificate of " + host + ": " + ex.getMessage());
+        }
+        if (alternative_names != null) {
+            for (List<?> alternative_name : alternative_names) {
+                int type = ((Integer) alternative_name.get(0)).intValue();
+                String value = String.valueOf(alternative_name.get(1)).toLowerCase();
+                if (type == DNS_NAME) {
+                    dns_names = true;
+                    if (!address && matchesName(name, value)) {
+                        return;
+                    }
+                } else if (type == IP_ADDRESS && address
+                        && InetAddress.getByName(name).equals(InetAddress.getByName(value))) {
+                    return;
+                }
+            }
+        }
+        if (!dns_names && !address) {
+            // Older certificates only name the host in the subject.
+            Matcher common_name = COMMON_NAME.matcher(certificate.getSubjectX500Principal().getName());
+            if (common_name.find() && matchesName(name, common_name.group(1).trim().toLowerCase())) {
+                return;
+            }
+        }
+        throw new SSLPeerUnverifiedException("Certificate is not issued to " + host);
+    }
+
+    /** Matches a host name to a name that may have a wildcard as its first label. */
+    private static boolean matchesName(String host, String name) {
+        if (!name.startsWith("*.")) {
+            return host.equals(name);
+        }
+        int dot = host.indexOf('.');
+        return dot > 0 && host.substring(dot).equals(name.substring(1)) && name.indexOf('.', 2) != -1;
+    }
+
+    private static int parseInt(String value) throws IOException {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("Malformed response: " + value);
+        }
+    }
+
+    /** Reads a line ended by CRLF or LF, without the end. */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int c = in.read();
+            if (c == -1) {
+                throw new EOFException("Connection closed in the response head");
+            }
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    /** Sends what is written as chunks, a chunk per flush or full buffer. */
+    private static class ChunkedOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int count = 0;
+        private boolean closed = false;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (closed || count == buf.length) {
+                writeChunk();
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (closed || count == buf.length) {
+                    writeChunk();
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            writeChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            writeChunk();
+            closed = true;
+            out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+            out.flush();
+        }
+
+        private void writeChunk() throws IOException {
+            if (closed) {
+                throw new IOException("Request body is closed");
+            }
+            if (count == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(count) + "\r\n").getBytes("ISO-8859-1"));
+            out.write(buf, 0, count);
+            out.write("\r\n".getBytes("ISO-8859-1"));
+            count = 0;
+        }
+    }
+
+    /** Reads the data of a chunked body. */
+    private static class ChunkedInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining = 0;
+        private boolean end = false;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int ret = in.read(b, off, (int) Math.min(len, remaining));
+            if (ret == -1) {
+                throw new EOFException("Connection closed in a chunk");
+            }
+            remaining -= ret;
+            if (remaining == 0) {
+                // CRLF after the chunk data
+                readLine(in);
+            }
+            return ret;
+        }
+
+        /** Returns false at the end of the body. */
+        private boolean nextChunk() throws IOException {
+            if (end) {
+                return false;
+            }
+            if (remaining != 0) {
+                return true;
+            }
+            String size = readLine(in);
+            int extension = size.indexOf(';');
+            try {
+                remaining = Long.parseLong((extension != -1 ? size.substring(0, extension) : size).trim(), 16);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Malformed chunk size: " + size);
+            }
+            if (remaining == 0) {
+                // Trailers
+                while (!readLine(in).isEmpty()) {
+                }
+                end = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /** Reads a body of known length. */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int ret = super.read(b, off, (int) Math.min(len, remaining));
+            if (ret != -1) {
+                remaining -= ret;
+            }
+            return ret;
+        }
+    }
+}
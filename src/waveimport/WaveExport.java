@@ -1,12 +1,10 @@
 package waveimport;
 
-import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.api.client.extensions.appengine.http.urlfetch.UrlFetchTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
-import com.google.appengine.tools.development.ApiProxyLocal;
-import com.google.appengine.tools.development.ApiProxyLocalFactory;
-import com.google.appengine.tools.development.LocalServerEnvironment;
-import com.google.apphosting.api.ApiProxy;
-import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.walkaround.wave.server.auth.FetchService;
 import com.google.walkaround.wave.server.auth.OAuthCredentials;
 import com.google.walkaround.wave.server.auth.OAuthRequestHelper;
 import com.google.walkaround.wave.server.auth.OAuthedFetchService;
@@ -14,14 +12,14 @@ import com.google.walkaround.wave.server.auth.StableUserId;
 import com.google.walkaround.wave.server.auth.UserContext;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import com.google.walkaround.proto.RobotSearchDigest;
+import java.io.FileReader;
 import java.io.FileWriter;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
@@ -32,6 +30,12 @@ import org.waveprotocol.wave.model.id.WaveletId;
  */
 public class WaveExport {
 
+    static final String SEARCH_QUERY = "after:2000/01/01 before:2012/12/31";
+    static final String ROBOT_API_URL = "https://www-opensocial.googleusercontent.com/api/rpc";
+    public static final String URLFETCH_PROPERTY = "waveimport.urlfetch";
+
+    private static FetchService fetchService;
+
     private final String clientId;
     private final String clientSecret;
     private final String userId;
@@ -58,50 +62,40 @@ public class WaveExport {
     }
 
     public void run() {
-        ApiProxyEnvironment env = new ApiProxyEnvironment();
-        ApiProxyLocal proxy = new ApiProxyLocalFactory().create(env);
-        ApiProxy.setDelegate(proxy);
-        ApiProxy.setEnvironmentForCurrentThread(new ApiEnvironment());
-        URLFetchService url_service = URLFetchServiceFactory.getURLFetchService();
-        UserContext context = new UserContext();
-        context.setUserId(new StableUserId(userId));
-        context.setParticipantId(new ParticipantId(participant));
-        OAuthCredentials cred = new OAuthCredentials(refreshToken, accessToken);
-        context.setOAuthCredentials(cred);
-        OAuthRequestHelper helper = new OAuthRequestHelper(clientId, clientSecret, context);
-        OAuthedFetchService oauth_service = new OAuthedFetchService(url_service, helper);
-        RobotApi api = new RobotApi(oauth_service, "https://www-opensocial.googleusercontent.com/api/rpc");
+        RobotApi api = createRobotApi(getFetchService(), clientId, clientSecret, userId, participant, refreshToken, accessToken);
         try {
-            int i=0;
-            int processed_count = 0;
-            int not_processed_count = 0;
-            for (;;) {
-                List<RobotSearchDigest> list = api.search("after:2000/01/01 before:2012/12/31", i, 100);
-                if (list.isEmpty()) {
+            DigestStore digests = new DigestStore();
+            for (int i = 0;;) {
+                int count = api.search(SEARCH_QUERY, i, 100, digests).length;
+                if (count == 0) {
                     break;
                 }
-                i += list.size();
-                for (RobotSearchDigest digest : list) {
-                    System.out.println(digest.getTitle() + ":");
-                    try {
-                        for (WaveletId waveled_id : api.getWaveView(WaveId.deserialise(digest.getWaveId()))) {
-                            File file = new File(exportDir + "/" + digest.getWaveId() + "#" + waveled_id.serialise() + "#json");
-                            if (file.exists()) {
-                                System.out.println("Skiped " + file.getName());
-                            } else {
-                                System.out.println("Exporting " + file.getName() + "...");
-                                FileWriter w = new FileWriter(file);
-                                JSONObject json = api.fetchWaveWithDeltas(WaveId.deserialise(digest.getWaveId()), waveled_id);
-                                w.write(json.toString());
-                                w.close();
-                            }
+                i += count;
+            }
+            System.out.println("Found " + digests.size() + " waves, digests take "
+                    + digests.getMemoryUsage() / 1024 + " KB");
+            int processed_count = 0;
+            int not_processed_count = 0;
+            for (int i = 0; i < digests.size(); i++) {
+                RobotSearchDigest digest = digests.getDigest(i);
+                System.out.println(digest.getTitle() + ":");
+                try {
+                    saveDigest(exportDir, digest);
+                    WaveId wave_id = WaveId.deserialise(digest.getWaveId());
+                    for (WaveletId waveled_id : api.getWaveView(wave_id)) {
+                        File file = getExportFile(exportDir, digest.getWaveId(), waveled_id);
+                        if (file.exists()) {
+                            System.out.println("Skiped " + file.getName());
+                        } else {
+                            System.out.println("Exporting " + file.getName() + "...");
+                            exportWavelet(api, wave_id, waveled_id, file);
                         }
-                        processed_count++;
-                    } catch (IOException ex) {
-                        not_processed_count++;
-                        System.out.println("Error " + ex.toString());
-                        Logger.getLogger(WaveExport.class.getName()).log(Level.SEVERE, null, ex);
                     }
+                    processed_count++;
+                } catch (IOException ex) {
+                    not_processed_count++;
+                    System.out.println("Error " + ex.toString());
+                    Logger.getLogger(WaveExport.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
             System.out.println("Processed count " + processed_count);
@@ -110,85 +104,125 @@ public class WaveExport {
             Logger.getLogger(WaveExport.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
-}
-
-class ApiProxyEnvironment implements LocalServerEnvironment {
-
-    @Override
-    public File getAppDir() {
-        throw new UnsupportedOperationException("Not supported yet.");
-    }
-
-    @Override
-    public String getAddress() {
-        throw new UnsupportedOperationException("Not supported yet.");
-    }
-
-    @Override
-    public int getPort() {
-        throw new UnsupportedOperationException("Not supported yet.");
-    }
-
-    @Override
-    public String getHostName() {
-        throw new UnsupportedOperationException("Not supported yet.");
-    }
-
-    @Override
-    public void waitForServerToStart() throws InterruptedException {
-        throw new UnsupportedOperationException("Not supported yet.");
-    }
 
-    @Override
-    public boolean enforceApiDeadlines() {
-        return false;
-    }
-
-    @Override
-    public boolean simulateProductionLatencies() {
-        return false;
+    /**
+     * Returns the fetch service of the tools. Requests are made with
+     * {@link HttpFetchService}, unless the {@code waveimport.urlfetch} system
+     * property is {@code appengine}: then the local App Engine API proxy is
+     * installed, which takes seconds to load, and other threads making
+     * fetches need {@link #initApiThread}.
+     */
+    static synchronized FetchService getFetchService() {
+        if (fetchService == null) {
+            if (isAppEngineFetch()) {
+                LocalApiProxy.install();
+                fetchService = FetchService.of(URLFetchServiceFactory.getURLFetchService());
+            } else {
+                fetchService = new HttpFetchService();
+            }
+        }
+        return fetchService;
     }
-}
-
-class ApiEnvironment implements Environment {
 
-    @Override
-    public String getAppId() {
-        throw new UnsupportedOperationException("Not supported yet.");
+    static void initApiThread() {
+        if (isAppEngineFetch()) {
+            LocalApiProxy.initThread();
+        }
     }
 
-    @Override
-    public String getVersionId() {
-        throw new UnsupportedOperationException("Not supported yet.");
+    private static boolean isAppEngineFetch() {
+        return "appengine".equals(System.getProperty(URLFETCH_PROPERTY));
     }
 
-    @Override
-    public String getEmail() {
-        throw new UnsupportedOperationException("Not supported yet.");
+    /** Creates the Robot API client of an account. */
+    static RobotApi createRobotApi(FetchService fetchService, String clientId, String clientSecret,
+            String userId, String participant, String refreshToken, String accessToken) {
+        return createRobotApi(fetchService, clientId, clientSecret, userId, participant, refreshToken, accessToken,
+                ROBOT_API_URL);
     }
 
-    @Override
-    public boolean isLoggedIn() {
-        throw new UnsupportedOperationException("Not supported yet.");
+    static RobotApi createRobotApi(FetchService fetchService, String clientId, String clientSecret,
+            String userId, String participant, String refreshToken, String accessToken, String robotApiUrl) {
+        UserContext context = new UserContext();
+        context.setUserId(new StableUserId(userId));
+        context.setParticipantId(new ParticipantId(participant));
+        OAuthCredentials cred = new OAuthCredentials(refreshToken, accessToken);
+        context.setOAuthCredentials(cred);
+        // Token refreshes go the same way as the fetches.
+        HttpTransport transport = isAppEngineFetch() ? new UrlFetchTransport() : new NetHttpTransport();
+        OAuthRequestHelper helper = new OAuthRequestHelper(clientId, clientSecret, context, transport);
+        OAuthedFetchService oauth_service = new OAuthedFetchService(fetchService, helper);
+        return new RobotApi(oauth_service, robotApiUrl);
     }
 
-    @Override
-    public boolean isAdmin() {
-        throw new UnsupportedOperationException("Not supported yet.");
+    static File getExportFile(String exportDir, String waveId, WaveletId waveletId) {
+        return new File(exportDir + "/" + waveId + "#" + waveletId.serialise() + "#json");
     }
 
-    @Override
-    public String getAuthDomain() {
-        throw new UnsupportedOperationException("Not supported yet.");
+    /**
+     * Fetches a wavelet into its export file. The file is written under a
+     * unique temporary name and renamed, so an interrupted export leaves no
+     * partial file which would be skipped later.
+     */
+    static void exportWavelet(RobotApi api, WaveId waveId, WaveletId waveletId, File file) throws IOException {
+        writeExport(api.fetchWaveWithDeltas(waveId, waveletId).toString(), file);
     }
 
-    @Override
-    public String getRequestNamespace() {
-        throw new UnsupportedOperationException("Not supported yet.");
+    /** Writes a fetched wavelet to its export file, see {@link #exportWavelet}. */
+    static void writeExport(String export, File file) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        FileWriter w = new FileWriter(tmp);
+        try {
+            w.write(export);
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp + " to " + file);
+        }
     }
 
-    @Override
-    public Map<String, Object> getAttributes() {
-        return new HashMap<String, Object>();
+    /**
+     * Saves the search digest of the wave for {@link ArchiveIndexer}, the file
+     * is only rewritten if the digest changed.
+     */
+    static void saveDigest(String exportDir, RobotSearchDigest digest) throws IOException {
+        String text;
+        try {
+            JSONObject json = new JSONObject();
+            json.put("waveId", digest.getWaveId());
+            json.put("title", digest.getTitle());
+            json.put("snippet", digest.getSnippet());
+            json.put("participants", new JSONArray(digest.getParticipant()));
+            json.put("lastModified", digest.getLastModifiedMillis());
+            json.put("blipCount", digest.getBlipCount());
+            json.put("unreadBlipCount", digest.getUnreadBlipCount());
+            text = json.toString();
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+        File file = new File(exportDir + "/" + digest.getWaveId() + "#digest");
+        if (file.exists()) {
+            StringBuilder saved = new StringBuilder();
+            FileReader r = new FileReader(file);
+            try {
+                char[] buf = new char[4096];
+                for (int n = r.read(buf); n != -1 && saved.length() <= text.length(); n = r.read(buf)) {
+                    saved.append(buf, 0, n);
+                }
+            } finally {
+                r.close();
+            }
+            if (saved.toString().equals(text)) {
+                return;
+            }
+        }
+        FileWriter w = new FileWriter(file);
+        try {
+            w.write(text);
+        } finally {
+            w.close();
+        }
     }
 }
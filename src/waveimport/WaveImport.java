@@ -3,22 +3,27 @@ package waveimport;
 import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPMethod;
 import com.google.appengine.api.urlfetch.HTTPRequest;
-import com.google.appengine.api.urlfetch.HTTPResponse;
-import com.google.appengine.api.urlfetch.URLFetchService;
-import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
-import com.google.appengine.tools.development.ApiProxyLocal;
-import com.google.appengine.tools.development.ApiProxyLocalFactory;
-import com.google.apphosting.api.ApiProxy;
+import com.google.common.io.ByteStreams;
+import com.google.walkaround.wave.server.auth.FetchResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
 
 /**
  *
@@ -26,28 +31,32 @@ import org.waveprotocol.wave.model.id.WaveletId;
  */
 public final class WaveImport {
 
+    /** Number of wavelets asked in one import status request. */
+    private static final int STATUS_BATCH_SIZE = 5000;
+
     private final String waveServerImportUrl;
     private final String waveServerDomain;
     private final String waveletsJsonDir;
+    private final int bulkConnections;
 
-    private WaveImport(String waveServerImportUrl, String waveServerDomain, String waveletsJsonDir) {
+    private WaveImport(String waveServerImportUrl, String waveServerDomain, String waveletsJsonDir,
+            int bulkConnections) {
         this.waveServerImportUrl = waveServerImportUrl;
         this.waveServerDomain = waveServerDomain;
         this.waveletsJsonDir = waveletsJsonDir;
+        this.bulkConnections = bulkConnections;
     }
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Use: WaveImport <WaveServerImportUrl> <WaveServerDomain> <WaveletsJsonDir>");
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Use: WaveImport <WaveServerImportUrl> <WaveServerDomain> <WaveletsJsonDir> [<BulkConnections>]");
+            return;
         }
-        new WaveImport(args[0], args[1], args[2]).run();
+        int bulk_connections = args.length == 4 ? Integer.parseInt(args[3]) : 0;
+        new WaveImport(args[0], args[1], args[2], bulk_connections).run();
     }
 
     public void run() {
-        ApiProxyEnvironment env = new ApiProxyEnvironment();
-        ApiProxyLocal proxy = new ApiProxyLocalFactory().create(env);
-        ApiProxy.setDelegate(proxy);
-        ApiProxy.setEnvironmentForCurrentThread(new ApiEnvironment());
         File[] files = new File(waveletsJsonDir).listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File file, String name) {
@@ -57,61 +66,166 @@ public final class WaveImport {
         int imported_count = 0;
         int skipped_count = 0;
         int not_imported_count = 0;
-        for (File file : files) {
-            try {
-                System.out.println("Importing " + file.getPath() + "...");
-                StringTokenizer st = new StringTokenizer(file.getName(), "#");
-                WaveId wave_id=WaveId.of(waveServerDomain, WaveId.deserialise(st.nextToken()).getId());
-                WaveletId wavelet_id=WaveletId.of(waveServerDomain, WaveletId.deserialise(st.nextToken()).getId());
-                if (importRequest(waveServerImportUrl, wave_id, wavelet_id, readFile(file))) {
-                    imported_count++;
-                } else {
+        Set<String> imported;
+        try {
+            imported = getImportedWavelets(files);
+            System.out.println(imported.size() + " of " + files.length + " wavelets are already imported");
+        } catch (IOException ex) {
+            System.err.println("Can't get import status, importing all: " + ex.getMessage());
+            imported = new HashSet<String>();
+        }
+        if (bulkConnections > 0) {
+            List<BulkImportClient.Item> items = new ArrayList<BulkImportClient.Item>();
+            for (File file : files) {
+                WaveletName name = getWaveletName(file);
+                if (imported.contains(name.waveId.serialise() + " " + name.waveletId.serialise())) {
                     skipped_count++;
+                } else {
+                    items.add(new BulkImportClient.Item(file, name));
                 }
-            } catch (IOException ex) {
-                not_imported_count++;
-                ex.printStackTrace(System.err);
             }
-            /*
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-                Logger.getLogger(WaveImport.class.getName()).log(Level.SEVERE, null, ex);
-            }*/
+            BulkImportClient client = new BulkImportClient(waveServerImportUrl + "/bulk", waveServerDomain, bulkConnections);
+            client.importFiles(items);
+            imported_count += client.getImportedCount();
+            skipped_count += client.getSkippedCount();
+            not_imported_count += items.size() - client.getImportedCount() - client.getSkippedCount();
+        } else {
+            for (File file : files) {
+                try {
+                    WaveletName name = getWaveletName(file);
+                    WaveId wave_id = name.waveId;
+                    WaveletId wavelet_id = name.waveletId;
+                    if (imported.contains(wave_id.serialise() + " " + wavelet_id.serialise())) {
+                        skipped_count++;
+                        continue;
+                    }
+                    System.out.println("Importing " + file.getPath() + "...");
+                    if (importRequest(waveServerImportUrl, wave_id, wavelet_id, file)) {
+                        imported_count++;
+                    } else {
+                        skipped_count++;
+                    }
+                } catch (IOException ex) {
+                    not_imported_count++;
+                    ex.printStackTrace(System.err);
+                }
+                /*
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(WaveImport.class.getName()).log(Level.SEVERE, null, ex);
+                }*/
+            }
         }
         System.out.println("Imported count " + imported_count);
         System.out.println("Not imported count " + not_imported_count);
         System.out.println("Skipped count " + skipped_count);
     }
 
-    public boolean importRequest(String url, WaveId waveId, WaveletId waveletId, String json) throws IOException {
-        URLFetchService url_service = URLFetchServiceFactory.getURLFetchService();
-        HTTPRequest request = new HTTPRequest(new URL(url), HTTPMethod.POST);
-        request.setHeader(new HTTPHeader("Content-Type", "application/json; charset=UTF-8"));
-        request.setHeader(new HTTPHeader("domain", waveServerDomain));
-        request.setHeader(new HTTPHeader("waveId", waveId.serialise()));
-        request.setHeader(new HTTPHeader("waveletId", waveletId.serialise()));
-        request.setPayload(json.getBytes("utf8"));
-        HTTPResponse response = url_service.fetch(request);
-        if (response.getResponseCode() != 200) {
-            throw new IOException(new String(response.getContent()));
+    /**
+     * Posts an exported file to the import servlet. The file is streamed
+     * into the request, compressed on the fly if compression is enabled, so
+     * it is never held in memory.
+     */
+    public boolean importRequest(String url, WaveId waveId, WaveletId waveletId, File file) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setChunkedStreamingMode(64 * 1024);
+        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        connection.setRequestProperty("domain", waveServerDomain);
+        connection.setRequestProperty("waveId", waveId.serialise());
+        connection.setRequestProperty("waveletId", waveletId.serialise());
+        if (Compression.isEnabled()) {
+            connection.setRequestProperty("Content-Encoding", Compression.getContentEncoding());
+        }
+        OutputStream out = connection.getOutputStream();
+        try {
+            if (Compression.isEnabled()) {
+                out = Compression.compress(out);
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                ByteStreams.copy(in, out);
+            } finally {
+                in.close();
+            }
+        } finally {
+            out.close();
+        }
+        boolean ok = connection.getResponseCode() == 200;
+        InputStream in = ok ? connection.getInputStream() : connection.getErrorStream();
+        String content = in != null ? readString(in) : connection.getResponseMessage();
+        if (!ok) {
+            throw new IOException(content);
         }
-        String content = new String(response.getContent());
         System.out.println("... " + content);
         return !content.equals("skipped");
     }
 
-    private static String readFile(File file) throws FileNotFoundException, IOException {
-        Reader reader = new FileReader(file);
+    /**
+     * Gets name of the wavelet an exported file is imported to, the domain
+     * renamed to the wave server domain.
+     */
+    private WaveletName getWaveletName(File file) {
+        StringTokenizer st = new StringTokenizer(file.getName(), "#");
+        WaveId wave_id=WaveId.of(waveServerDomain, WaveId.deserialise(st.nextToken()).getId());
+        WaveletId wavelet_id=WaveletId.of(waveServerDomain, WaveletId.deserialise(st.nextToken()).getId());
+        return WaveletName.of(wave_id, wavelet_id);
+    }
+
+    /**
+     * Asks the wave server which of the exported wavelets are completely
+     * imported, in batches. Returns them as "waveId waveletId" strings.
+     */
+    private Set<String> getImportedWavelets(File[] files) throws IOException {
+        Set<String> imported = new HashSet<String>();
+        List<String> batch = new ArrayList<String>();
+        for (File file : files) {
+            WaveletName name = getWaveletName(file);
+            batch.add(name.waveId.serialise() + " " + name.waveletId.serialise());
+            if (batch.size() == STATUS_BATCH_SIZE) {
+                statusRequest(waveServerImportUrl + "/status", batch, imported);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            statusRequest(waveServerImportUrl + "/status", batch, imported);
+        }
+        return imported;
+    }
+
+    static void statusRequest(String url, List<String> wavelets, Set<String> imported) throws IOException {
+        HTTPRequest request = new HTTPRequest(new URL(url), HTTPMethod.POST);
+        request.setHeader(new HTTPHeader("Content-Type", "text/plain; charset=UTF-8"));
         StringBuilder sb = new StringBuilder();
-        char buf[] = new char[1000];
-        for (;;) {
-            int ret = reader.read(buf, 0, buf.length);
-            if (ret == -1) {
-                break;
+        for (String wavelet : wavelets) {
+            sb.append(wavelet).append('\n');
+        }
+        request.setPayload(sb.toString().getBytes("utf8"));
+        FetchResponse response = WaveExport.getFetchService().fetch(request);
+        if (response.getResponseCode() != 200) {
+            throw new IOException(new String(response.getContent()));
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(response.getContent()), "utf8"));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            // <waveId> <waveletId> <state> <version>
+            StringTokenizer st = new StringTokenizer(line, " ");
+            if (st.countTokens() == 4) {
+                String wavelet = st.nextToken() + " " + st.nextToken();
+                if ("imported".equals(st.nextToken())) {
+                    imported.add(wavelet);
+                }
             }
-            sb.append(buf, 0, ret);
         }
-        return sb.toString();
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        try {
+            return new String(ByteStreams.toByteArray(in), "utf8");
+        } finally {
+            in.close();
+        }
     }
 }
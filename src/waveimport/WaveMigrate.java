@@ -0,0 +1,219 @@
+package waveimport;
+
+import com.google.walkaround.proto.RobotSearchDigest;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+/**
+ * Migrates waves from GWave to the wave server without export files.
+ *
+ * Fetch threads take the waves found by search, skip wavelets the wave
+ * server has already imported and put the fetched wavelets into a bounded
+ * queue, which {@link BulkImportClient} connections stream to the bulk
+ * import servlet. When the wave server falls behind, the connections block,
+ * the queue fills and the fetches wait, so only a few wavelets are held in
+ * memory and the migration takes about as long as the slower of export and
+ * import.
+ *
+ * If an archive directory is given, fetched wavelets and digests are also
+ * written there as {@link WaveExport} does, and wavelets already in the
+ * archive are imported from it instead of fetched. The numbers of fetch
+ * threads and import connections are taken from the
+ * {@code waveimport.migrate.fetchThreads} and
+ * {@code waveimport.migrate.connections} system properties.
+ *
+ * @author A. Kaplanov
+ */
+public class WaveMigrate {
+
+    public static final String FETCH_THREADS_PROPERTY = "waveimport.migrate.fetchThreads";
+    public static final String CONNECTIONS_PROPERTY = "waveimport.migrate.connections";
+    private static final int DEFAULT_FETCH_THREADS = 4;
+    private static final int DEFAULT_CONNECTIONS = 2;
+    private static final int PAGE_SIZE = 100;
+
+    private final String clientId;
+    private final String clientSecret;
+    private final String userId;
+    private final String participant;
+    private final String refreshToken;
+    private final String accessToken;
+    private final String waveServerImportUrl;
+    private final String waveServerDomain;
+    private final String archiveDir;
+    private final int fetchThreads;
+    private final int connections;
+
+    private final AtomicInteger nextWave = new AtomicInteger();
+    private final AtomicInteger fetchedCount = new AtomicInteger();
+    private final AtomicInteger alreadyImportedCount = new AtomicInteger();
+    private final AtomicInteger fetchFailedCount = new AtomicInteger();
+    private RobotApi api;
+    private DigestStore digests;
+    private BlockingQueue<BulkImportClient.Item> queue;
+
+    public WaveMigrate(String clientId, String clientSecret, String userId, String participant, String refreshToken,
+            String accessToken, String waveServerImportUrl, String waveServerDomain, String archiveDir) {
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.userId = userId;
+        this.participant = participant;
+        this.refreshToken = refreshToken;
+        this.accessToken = accessToken;
+        this.waveServerImportUrl = waveServerImportUrl;
+        this.waveServerDomain = waveServerDomain;
+        this.archiveDir = archiveDir;
+        this.fetchThreads = Integer.getInteger(FETCH_THREADS_PROPERTY, DEFAULT_FETCH_THREADS);
+        this.connections = Integer.getInteger(CONNECTIONS_PROPERTY, DEFAULT_CONNECTIONS);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 8 && args.length != 9) {
+            System.err.println("Use: WaveMigrate <ClientId> <ClientSecret> <UserId> <Participant> <RefreshToken> <AccessToken> <WaveServerImportUrl> <WaveServerDomain> [<ArchiveDir>]");
+            return;
+        }
+        new WaveMigrate(args[0], args[1], args[2], args[3], args[4], args[5], args[6], args[7],
+                args.length == 9 ? args[8] : null).run();
+    }
+
+    public void run() {
+        api = WaveExport.createRobotApi(WaveExport.getFetchService(), clientId, clientSecret,
+                userId, participant, refreshToken, accessToken);
+        digests = new DigestStore();
+        try {
+            for (int i = 0;;) {
+                int count = api.search(WaveExport.SEARCH_QUERY, i, PAGE_SIZE, digests).length;
+                if (count == 0) {
+                    break;
+                }
+                i += count;
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return;
+        }
+        System.out.println("Found " + digests.size() + " waves");
+        if (archiveDir != null) {
+            new File(archiveDir).mkdirs();
+        }
+        // A couple of wavelets ready for each connection, fetches wait for the rest.
+        queue = new ArrayBlockingQueue<BulkImportClient.Item>(connections * 2);
+        BulkImportClient client = new BulkImportClient(waveServerImportUrl + "/bulk", waveServerDomain, connections);
+        final Thread[] threads = new Thread[fetchThreads];
+        for (int i = 0; i < fetchThreads; i++) {
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    WaveExport.initApiThread();
+                    try {
+                        for (int wave = nextWave.getAndIncrement(); wave < digests.size();
+                                wave = nextWave.getAndIncrement()) {
+                            migrateWave(digests.getDigest(wave));
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "WaveMigrate-" + i);
+            // Not kept waiting to put to the queue if the import stops early.
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        Thread ender = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    queue.put(BulkImportClient.END);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "WaveMigrate-end");
+        ender.setDaemon(true);
+        ender.start();
+        client.importStream(queue);
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        ender.interrupt();
+        System.out.println("Fetched count " + fetchedCount.get());
+        System.out.println("Imported count " + client.getImportedCount());
+        System.out.println("Skipped count " + (client.getSkippedCount() + alreadyImportedCount.get()));
+        System.out.println("Not imported count " + (client.getFailedCount() + fetchFailedCount.get()));
+    }
+
+    /** Puts the wavelets of the wave which are not imported yet to the queue. */
+    private void migrateWave(RobotSearchDigest digest) throws InterruptedException {
+        List<WaveletId> wavelet_ids;
+        Set<String> imported = new HashSet<String>();
+        WaveId wave_id = WaveId.deserialise(digest.getWaveId());
+        try {
+            if (archiveDir != null) {
+                WaveExport.saveDigest(archiveDir, digest);
+            }
+            wavelet_ids = api.getWaveView(wave_id);
+            List<String> names = new ArrayList<String>();
+            for (WaveletId wavelet_id : wavelet_ids) {
+                WaveletName name = getWaveletName(wave_id, wavelet_id);
+                names.add(name.waveId.serialise() + " " + name.waveletId.serialise());
+            }
+            WaveImport.statusRequest(waveServerImportUrl + "/status", names, imported);
+        } catch (IOException ex) {
+            fetchFailedCount.incrementAndGet();
+            System.out.println("Error " + digest.getWaveId() + " " + ex);
+            return;
+        }
+        for (WaveletId wavelet_id : wavelet_ids) {
+            WaveletName name = getWaveletName(wave_id, wavelet_id);
+            if (imported.contains(name.waveId.serialise() + " " + name.waveletId.serialise())) {
+                alreadyImportedCount.incrementAndGet();
+                continue;
+            }
+            File file = archiveDir != null ? WaveExport.getExportFile(archiveDir, digest.getWaveId(), wavelet_id) : null;
+            if (file != null && file.exists()) {
+                queue.put(new BulkImportClient.Item(file, name));
+                continue;
+            }
+            String export;
+            try {
+                System.out.println("Fetching " + digest.getWaveId() + " " + wavelet_id.serialise() + "...");
+                export = api.fetchWaveWithDeltas(wave_id, wavelet_id).toString();
+                fetchedCount.incrementAndGet();
+            } catch (IOException ex) {
+                fetchFailedCount.incrementAndGet();
+                System.out.println("Error " + digest.getWaveId() + " " + wavelet_id.serialise() + " " + ex);
+                continue;
+            }
+            if (file != null) {
+                try {
+                    WaveExport.writeExport(export, file);
+                } catch (IOException ex) {
+                    // The wavelet is imported anyway, and fetched again by a later run.
+                    System.out.println("Can't archive " + file.getName() + " " + ex);
+                }
+            }
+            queue.put(new BulkImportClient.Item(export, name));
+        }
+    }
+
+    /** Gets name of the wavelet on the wave server, as {@link WaveImport} does. */
+    private WaveletName getWaveletName(WaveId waveId, WaveletId waveletId) {
+        return WaveletName.of(WaveId.of(waveServerDomain, waveId.getId()),
+                WaveletId.of(waveServerDomain, waveletId.getId()));
+    }
+}
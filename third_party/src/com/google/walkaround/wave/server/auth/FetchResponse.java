@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.auth;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.common.collect.ImmutableList;
+
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Response of a {@link FetchService}.  Unlike App Engine's HTTPResponse, it
+ * can be made outside of the SDK.
+ */
+public final class FetchResponse {
+
+  private final int responseCode;
+  private final byte[] content;
+  private final URL finalUrl;
+  private final List<HTTPHeader> headers;
+
+  public FetchResponse(int responseCode, byte[] content, URL finalUrl, List<HTTPHeader> headers) {
+    this.responseCode = responseCode;
+    this.content = content;
+    this.finalUrl = finalUrl;
+    this.headers = ImmutableList.copyOf(headers);
+  }
+
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  public byte[] getContent() {
+    return content;
+  }
+
+  /** The URL after redirects, or null if not known. */
+  public URL getFinalUrl() {
+    return finalUrl;
+  }
+
+  public List<HTTPHeader> getHeaders() {
+    return headers;
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.auth;
+
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+
+import java.io.IOException;
+
+/**
+ * Makes the HTTP requests of {@link OAuthedFetchService}, through App
+ * Engine's URLFetch or otherwise.
+ */
+public abstract class FetchService {
+
+  public abstract FetchResponse fetch(HTTPRequest request) throws IOException;
+
+  /** Returns a fetch service that makes requests through {@code fetch}. */
+  public static FetchService of(final URLFetchService fetch) {
+    return new FetchService() {
+      @Override public FetchResponse fetch(HTTPRequest request) throws IOException {
+        HTTPResponse resp = fetch.fetch(request);
+        return new FetchResponse(resp.getResponseCode(), resp.getContent(), resp.getFinalUrl(),
+            resp.getHeaders());
+      }
+    };
+  }
+}
@@ -20,6 +20,7 @@ import com.google.api.client.extensions.appengine.http.urlfetch.UrlFetchTranspor
 import com.google.api.client.googleapis.auth.oauth2.draft10.GoogleAccessProtectedResource;
 import com.google.api.client.googleapis.auth.oauth2.draft10.GoogleAccessTokenRequest;
 import com.google.api.client.googleapis.auth.oauth2.draft10.GoogleAuthorizationRequestUrl;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPRequest;
@@ -50,10 +51,16 @@ public class OAuthRequestHelper {
       @Flag(FlagName.OAUTH_CLIENT_ID) String clientId,
       @Flag(FlagName.OAUTH_CLIENT_SECRET) String clientSecret,
       UserContext userContext) {
+    this(clientId, clientSecret, userContext, new UrlFetchTransport());
+  }
+
+  /** Refreshes tokens through the given transport instead of URLFetch. */
+  public OAuthRequestHelper(String clientId, String clientSecret, UserContext userContext,
+      HttpTransport transport) {
     this.userContext = userContext;
     this.accessThing = new GoogleAccessProtectedResource(
         getCredentials().getAccessToken(),
-        new UrlFetchTransport(), new JacksonFactory(), clientId, clientSecret,
+        transport, new JacksonFactory(), clientId, clientSecret,
         getCredentials().getRefreshToken());
   }
 
@@ -18,8 +18,6 @@ package com.google.walkaround.wave.server.auth;
 
 import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPRequest;
-import com.google.appengine.api.urlfetch.HTTPResponse;
-import com.google.appengine.api.urlfetch.URLFetchService;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -42,12 +40,12 @@ public final class OAuthedFetchService {
    * expired.
    */
   public interface TokenRefreshNeededDetector {
-    boolean refreshNeeded(HTTPResponse resp) throws IOException;
+    boolean refreshNeeded(FetchResponse resp) throws IOException;
   }
 
   public static final TokenRefreshNeededDetector RESPONSE_CODE_401_DETECTOR =
       new TokenRefreshNeededDetector() {
-        @Override public boolean refreshNeeded(HTTPResponse resp) {
+        @Override public boolean refreshNeeded(FetchResponse resp) {
           return resp.getResponseCode() == 401;
         }
       };
@@ -55,11 +53,11 @@ public final class OAuthedFetchService {
   @SuppressWarnings("unused")
   private static final Logger log = Logger.getLogger(OAuthedFetchService.class.getName());
 
-  private final URLFetchService fetch;
+  private final FetchService fetch;
   private final OAuthRequestHelper helper;
 
   @Inject
-  public OAuthedFetchService(URLFetchService fetch, OAuthRequestHelper helper) {
+  public OAuthedFetchService(FetchService fetch, OAuthRequestHelper helper) {
     this.fetch = fetch;
     this.helper = helper;
   }
@@ -72,7 +70,7 @@ public final class OAuthedFetchService {
     return "" + b;
   }
 
-  private String describeResponse(HTTPResponse resp, boolean includeBody) {
+  private String describeResponse(FetchResponse resp, boolean includeBody) {
     StringBuilder b = new StringBuilder(resp.getResponseCode()
         + " with " + resp.getContent().length + " bytes of content");
     for (HTTPHeader h : resp.getHeaders()) {
@@ -86,13 +84,13 @@ public final class OAuthedFetchService {
     return "" + b;
   }
 
-  private HTTPResponse fetch1(HTTPRequest req, TokenRefreshNeededDetector refreshNeeded,
+  private FetchResponse fetch1(HTTPRequest req, TokenRefreshNeededDetector refreshNeeded,
       boolean tokenJustRefreshed) throws IOException {
     log.info("Sending request (token just refreshed: " + tokenJustRefreshed + "): "
         + describeRequest(req));
     helper.authorize(req);
     //log.info("req after authorizing: " + describeRequest(req));
-    HTTPResponse resp = fetch.fetch(req);
+    FetchResponse resp = fetch.fetch(req);
     log.info("response: " + describeResponse(resp, false));
     if (refreshNeeded.refreshNeeded(resp)) {
       if (tokenJustRefreshed) {
@@ -107,19 +105,19 @@ public final class OAuthedFetchService {
     }
   }
 
-  public HTTPResponse fetch(HTTPRequest request, TokenRefreshNeededDetector refreshNeeded)
+  public FetchResponse fetch(HTTPRequest request, TokenRefreshNeededDetector refreshNeeded)
       throws IOException {
     return fetch1(request, refreshNeeded, false);
   }
 
-  public HTTPResponse fetch(HTTPRequest request) throws IOException {
+  public FetchResponse fetch(HTTPRequest request) throws IOException {
     return fetch(request, RESPONSE_CODE_401_DETECTOR);
   }
 
   // TODO(ohler): Move these static utility methods to some other utility class.
 
   /** Gets the values of all headers with the name {@code headerName}. */
-  public static List<String> getHeaders(HTTPResponse resp, String headerName) {
+  public static List<String> getHeaders(FetchResponse resp, String headerName) {
     ImmutableList.Builder<String> b = ImmutableList.builder();
     for (HTTPHeader h : resp.getHeaders()) {
       // HTTP header names are case-insensitive.  App Engine downcases them when
@@ -135,12 +133,12 @@ public final class OAuthedFetchService {
    * Checks that exactly one header named {@code headerName} is present and
    * returns its value.
    */
-  public static String getSingleHeader(HTTPResponse resp, String headerName) {
+  public static String getSingleHeader(FetchResponse resp, String headerName) {
     return Iterables.getOnlyElement(getHeaders(resp, headerName));
   }
 
   /** Returns the body of {@code resp}, assuming that its encoding is UTF-8. */
-  private static String getUtf8ResponseBodyUnchecked(HTTPResponse resp) {
+  private static String getUtf8ResponseBodyUnchecked(FetchResponse resp) {
     byte[] rawResponseBody = resp.getContent();
     if (rawResponseBody == null) {
       return "";
@@ -154,7 +152,7 @@ public final class OAuthedFetchService {
    * {@code expectedUtf8ContentType} (which is assumed to imply UTF-8 encoding)
    * and returns the body as a String.
    */
-  public static String getUtf8ResponseBody(HTTPResponse resp, String expectedUtf8ContentType)
+  public static String getUtf8ResponseBody(FetchResponse resp, String expectedUtf8ContentType)
       throws IOException {
     String contentType = getSingleHeader(resp, "Content-Type");
     if (!expectedUtf8ContentType.equals(contentType)) {
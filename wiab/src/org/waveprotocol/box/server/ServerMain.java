@@ -81,7 +81,12 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServlet;
+import org.waveprotocol.box.server.imp.BulkImportServlet;
 import org.waveprotocol.box.server.imp.ImportServlet;
+import org.waveprotocol.box.server.imp.ImportQueueServlet;
+import org.waveprotocol.box.server.imp.SnapshotImportServlet;
+import org.waveprotocol.box.server.imp.ImportStatusServlet;
+import org.waveprotocol.box.server.imp.ImportVerifyServlet;
 
 /**
  * Wave Server entrypoint.
@@ -229,6 +234,11 @@ public class ServerMain {
     server.addServlet("/waveref/*", WaveRefServlet.class);
 
     server.addServlet("/import", ImportServlet.class);
+    server.addServlet("/import/status", ImportStatusServlet.class);
+    server.addServlet("/import/bulk", BulkImportServlet.class);
+    server.addServlet("/import/queue", ImportQueueServlet.class);
+    server.addServlet("/import/snapshot", SnapshotImportServlet.class);
+    server.addServlet("/import/verify", ImportVerifyServlet.class);
     
     String gadgetHostName =
         injector
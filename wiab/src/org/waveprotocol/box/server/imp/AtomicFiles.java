@@ -0,0 +1,63 @@
+package org.waveprotocol.box.server.imp;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replaces files by new versions written beside them, so that a crash
+ * leaves either the old or the new version in place.
+ *
+ * Renaming over an existing file is atomic on POSIX file systems. Where it
+ * fails, as on Windows, the old file is first renamed to a backup, which
+ * {@link #recover} puts back if the crash came before the new file was in
+ * place.
+ *
+ * @author A. Kaplanov
+ */
+final class AtomicFiles {
+
+    private static final String BACKUP_SUFFIX = ".bak";
+
+    private AtomicFiles() {
+    }
+
+    /** Replaces {@code file} by {@code tmp}. */
+    static void replace(File tmp, File file) throws IOException {
+        if (tmp.renameTo(file)) {
+            return;
+        }
+        File backup = new File(file.getPath() + BACKUP_SUFFIX);
+        backup.delete();
+        if (file.exists() && !file.renameTo(backup)) {
+            throw new IOException("Can't replace " + file + " with " + tmp);
+        }
+        if (!tmp.renameTo(file)) {
+            backup.renameTo(file);
+            throw new IOException("Can't replace " + file + " with " + tmp);
+        }
+        backup.delete();
+    }
+
+    /**
+     * Completes or undoes a replacement interrupted by a crash. Called
+     * before reading the file.
+     */
+    static void recover(File file) throws IOException {
+        File backup = new File(file.getPath() + BACKUP_SUFFIX);
+        if (!backup.exists()) {
+            return;
+        }
+        if (file.exists()) {
+            // The new version was in place.
+            backup.delete();
+        } else if (!backup.renameTo(file)) {
+            throw new IOException("Can't restore " + file + " from " + backup);
+        }
+    }
+
+    /** Deletes the file and a backup left by an interrupted replacement. */
+    static void delete(File file) {
+        file.delete();
+        new File(file.getPath() + BACKUP_SUFFIX).delete();
+    }
+}
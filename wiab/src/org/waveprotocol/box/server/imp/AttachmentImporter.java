@@ -0,0 +1,152 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.waveprotocol.box.server.persistence.AttachmentStore;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+/**
+ * Imports attachments referenced by imported wavelets in the background, so
+ * that fetching them does not stall delta application.
+ *
+ * Fetches run on a bounded thread pool and are deduplicated by attachment id,
+ * also across wavelets: an attachment is fetched once, however many wavelets
+ * refer to it, as later references find it in the store. Content is streamed from the {@link AttachmentSource} into the
+ * {@link AttachmentStore} without buffering it in memory.
+ *
+ * The number of fetch threads is taken from the
+ * {@code wave.import.attachment.threads} system property. If
+ * {@code wave.import.attachment.dir} is set, attachments are read from that
+ * directory instead of the Google Wave attachment server. Connects and reads
+ * of the attachment server time out after
+ * {@code wave.import.attachment.timeout} seconds (default 60), and an import
+ * waits at most {@code wave.import.attachment.wait} seconds (default 600)
+ * for the attachments of a wavelet, see {@link #getWaitMillis}.
+ *
+ * @author A. Kaplanov
+ */
+@Singleton
+public class AttachmentImporter {
+
+    private static final Log LOG = Log.get(AttachmentImporter.class);
+
+    public static final String THREADS_PROPERTY = "wave.import.attachment.threads";
+    public static final String DIR_PROPERTY = "wave.import.attachment.dir";
+    public static final String TIMEOUT_PROPERTY = "wave.import.attachment.timeout";
+    public static final String WAIT_PROPERTY = "wave.import.attachment.wait";
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_TIMEOUT = 60;
+    private static final int DEFAULT_WAIT = 600;
+
+    private final AttachmentStore attachmentStore;
+    private final AttachmentSource source;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Future<Boolean>> attachments =
+            new ConcurrentHashMap<String, Future<Boolean>>();
+
+    @Inject
+    public AttachmentImporter(AttachmentStore attachmentStore) {
+        this(attachmentStore, defaultSource(), Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS));
+    }
+
+    public AttachmentImporter(AttachmentStore attachmentStore, AttachmentSource source, int threads) {
+        this.attachmentStore = attachmentStore;
+        this.source = source;
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("AttachmentImporter-%d").setDaemon(true).build());
+    }
+
+    private static AttachmentSource defaultSource() {
+        String dir = System.getProperty(DIR_PROPERTY);
+        return dir != null ? new FileAttachmentSource(new File(dir))
+                : new UrlAttachmentSource(Integer.getInteger(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT) * 1000);
+    }
+
+    /**
+     * Time an import waits for the attachments of a wavelet. Attachments not
+     * imported by then leave the wavelet partial, to be fetched again.
+     */
+    public long getWaitMillis() {
+        return Integer.getInteger(WAIT_PROPERTY, DEFAULT_WAIT) * 1000L;
+    }
+
+    /**
+     * Schedules import of an attachment, unless it is already imported or
+     * being imported. The returned future completes when the attachment is in
+     * the store.
+     *
+     * @param name wavelet which refers to the attachment
+     * @param attachmentId id of the attachment
+     * @param path attachment_url value found in the exported wavelet
+     */
+    public Future<Boolean> importAttachment(final WaveletName name, final String attachmentId,
+            final String path) {
+        Future<Boolean> future = attachments.get(attachmentId);
+        if (future != null) {
+            return future;
+        }
+        FetchTask task = new FetchTask(attachmentId, new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws IOException {
+                // Imported before, by an earlier fetch or an earlier import.
+                if (attachmentStore.getAttachment(name, attachmentId) != null) {
+                    return true;
+                }
+                InputStream in = source.open(attachmentId, path);
+                try {
+                    attachmentStore.storeAttachment(name, attachmentId, in);
+                    return true;
+                } finally {
+                    in.close();
+                }
+            }
+        });
+        future = attachments.putIfAbsent(attachmentId, task);
+        if (future != null) {
+            return future;
+        }
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Forgets the fetch once it is done, so that the map only holds fetches
+     * in progress. Later references find a fetched attachment in the store,
+     * and retry a failed one.
+     */
+    private class FetchTask extends FutureTask<Boolean> {
+
+        private final String attachmentId;
+
+        FetchTask(String attachmentId, Callable<Boolean> callable) {
+            super(callable);
+            this.attachmentId = attachmentId;
+        }
+
+        @Override
+        protected void done() {
+            attachments.remove(attachmentId, this);
+            try {
+                get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                LOG.warning("Can't import attachment " + attachmentId, ex.getCause());
+            }
+        }
+    }
+}
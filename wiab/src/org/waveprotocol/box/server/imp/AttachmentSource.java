@@ -0,0 +1,20 @@
+package org.waveprotocol.box.server.imp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where the content of exported attachments is fetched from.
+ *
+ * @author A. Kaplanov
+ */
+public interface AttachmentSource {
+
+    /**
+     * Opens the content of an attachment.
+     *
+     * @param attachmentId id of the attachment
+     * @param path attachment_url value found in the exported wavelet
+     */
+    InputStream open(String attachmentId, String path) throws IOException;
+}
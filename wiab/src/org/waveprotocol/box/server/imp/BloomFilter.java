@@ -0,0 +1,61 @@
+package org.waveprotocol.box.server.imp;
+
+/**
+ * Simple Bloom filter over strings, used to answer "definitely not present"
+ * without touching the backing index.
+ *
+ * Not thread-safe, callers synchronize.
+ *
+ * @author A. Kaplanov
+ */
+public final class BloomFilter {
+
+    private final long[] bits;
+    private final int bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions number of elements the filter is sized for
+     * @param falsePositiveRate desired false positive rate at that size
+     */
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        int n = Math.max(expectedInsertions, 1);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        m = Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.bitCount = (int) ((m + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+        this.bits = new long[bitCount / 64];
+    }
+
+    public void put(String key) {
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            bits[bit >>> 6] |= 1L << (bit & 63);
+        }
+    }
+
+    /** Returns false if {@code key} was never added. */
+    public boolean mightContain(String key) {
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            if ((bits[bit >>> 6] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** FNV-1a, independent enough from String.hashCode for double hashing. */
+    private static int secondHash(String key) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        return h | 1;
+    }
+}
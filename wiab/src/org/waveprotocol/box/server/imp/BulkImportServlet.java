@@ -0,0 +1,146 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+/**
+ * Imports many wavelets sent in one streamed request.
+ *
+ * Request body is newline delimited JSON, one wavelet per line:
+ * {@code {"waveId":..., "waveletId":..., "export":<file written by WaveExport>}},
+ * target domain is in the {@code domain} header as for {@link ImportServlet}.
+ * The body may be gzip or deflate compressed, as told by Content-Encoding.
+ * Wavelets are imported in parallel while the body is read. Response body is
+ * newline delimited JSON too, a line per wavelet in order of completion:
+ * {@code {"waveId":..., "waveletId":..., "result":"imported"|"skipped"|"failed", "error":...}}.
+ * Results are written while the body is read, so clients have to read them
+ * as they send, or the import stops when the connection buffers are full.
+ *
+ * The number of import threads is taken from the
+ * {@code wave.import.bulk.threads} system property.
+ *
+ * @author A. Kaplanov
+ */
+@SuppressWarnings("serial")
+@Singleton
+public class BulkImportServlet extends HttpServlet {
+
+    private static final Log LOG = Log.get(BulkImportServlet.class);
+
+    public static final String THREADS_PROPERTY = "wave.import.bulk.threads";
+    private static final int DEFAULT_THREADS = 4;
+
+    private final WaveletImporter waveletImporter;
+    private final ExecutorService executor;
+    private final int threads;
+
+    @Inject
+    private BulkImportServlet(WaveletImporter waveletImporter) {
+        this.waveletImporter = waveletImporter;
+        this.threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("BulkImport-%d").setDaemon(true).build());
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        final String domain = request.getHeader("domain");
+        BufferedReader reader;
+        try {
+            reader = RequestBodies.getReader(request);
+        } catch (RequestBodies.UnsupportedContentEncodingException ex) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, ex.getMessage());
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/x-ndjson; charset=UTF-8");
+        final PrintWriter writer = response.getWriter();
+        // Bounds wavelets held in memory, reading of the body waits for free workers.
+        int max_pending = threads * 2;
+        final Semaphore pending = new Semaphore(max_pending);
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                pending.acquire();
+                final String frame = line;
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            writeResult(writer, importFrame(domain, frame));
+                        } finally {
+                            pending.release();
+                        }
+                    }
+                });
+            }
+            pending.acquire(max_pending);
+            pending.release(max_pending);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+    private JSONObject importFrame(String domain, String frame) {
+        JSONObject result = new JSONObject();
+        try {
+            JSONObject json = new JSONObject(frame);
+            String wave_id = json.getString("waveId");
+            String wavelet_id = json.getString("waveletId");
+            result.put("waveId", wave_id);
+            result.put("waveletId", wavelet_id);
+            try {
+                WaveletName name = WaveletName.of(WaveId.deserialise(wave_id), WaveletId.deserialise(wavelet_id));
+                boolean imported = waveletImporter.importWavelet(domain, name,
+                        WaveletImporter.parseDeltas(json.getJSONObject("export")));
+                result.put("result", imported ? "imported" : "skipped");
+            } catch (IOException ex) {
+                LOG.warning("Can't import " + wave_id + " " + wavelet_id, ex);
+                result.put("result", "failed");
+                result.put("error", String.valueOf(ex.getMessage()));
+            } catch (RuntimeException ex) {
+                LOG.warning("Can't import " + wave_id + " " + wavelet_id, ex);
+                result.put("result", "failed");
+                result.put("error", ex.toString());
+            }
+        } catch (JSONException ex) {
+            LOG.warning("Malformed bulk import frame", ex);
+            try {
+                result.put("result", "failed");
+                result.put("error", "Malformed frame: " + ex.getMessage());
+            } catch (JSONException ex2) {
+                throw new RuntimeException(ex2);
+            }
+        }
+        return result;
+    }
+
+    private static void writeResult(PrintWriter writer, JSONObject result) {
+        synchronized (writer) {
+            writer.print(result.toString());
+            writer.print('\n');
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation.MutateDocument;
+
+/**
+ * Rewrites serialized {@link ProtocolWaveletDelta}s without parsing them.
+ *
+ * Only the fields which may change are decoded: the hashed version, the
+ * author, participant operations and document operations which mention
+ * attachments. Everything else, and every field left unchanged, is copied
+ * through as raw bytes, and an operation is only re-encoded once one of its
+ * fields actually changes.
+ *
+ * Callbacks are called in the order the fields are stored, which is field
+ * number order for deltas written by protobuf: the author first, then
+ * operations in order.
+ *
+ * @author A. Kaplanov
+ */
+final class DeltaRewriter {
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    private static final int DELTA_HASHED_VERSION_TAG =
+            tag(ProtocolWaveletDelta.HASHED_VERSION_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int DELTA_AUTHOR_TAG =
+            tag(ProtocolWaveletDelta.AUTHOR_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int DELTA_OPERATION_TAG =
+            tag(ProtocolWaveletDelta.OPERATION_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int VERSION_TAG =
+            tag(ProtocolHashedVersion.VERSION_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int ADD_PARTICIPANT_TAG =
+            tag(ProtocolWaveletOperation.ADD_PARTICIPANT_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int REMOVE_PARTICIPANT_TAG =
+            tag(ProtocolWaveletOperation.REMOVE_PARTICIPANT_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int MUTATE_DOCUMENT_TAG =
+            tag(ProtocolWaveletOperation.MUTATE_DOCUMENT_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+
+    // Document operations without this are passed through unparsed.
+    private static final byte[] ATTACHMENT_MARKER = ByteString.copyFromUtf8("attachment_url").toByteArray();
+
+    /** Rewrites applied to the fields of a delta. */
+    interface Rewrites {
+
+        /** Returns the new address of a participant, may be the same. */
+        String convertParticipant(String address);
+
+        /**
+         * Returns the rewritten document operation, or null if it is left
+         * unchanged. Only called for operations mentioning attachments.
+         */
+        MutateDocument rewriteDocument(MutateDocument document) throws IOException;
+    }
+
+    private DeltaRewriter() {
+    }
+
+    /** Version, author and size of a serialized delta. */
+    static final class Summary {
+
+        private final long version;
+        private final String author;
+        private final int operationCount;
+
+        private Summary(long version, String author, int operationCount) {
+            this.version = version;
+            this.author = author;
+            this.operationCount = operationCount;
+        }
+
+        /** Version the delta applies at. */
+        long getVersion() {
+            return version;
+        }
+
+        String getAuthor() {
+            return author;
+        }
+
+        int getOperationCount() {
+            return operationCount;
+        }
+    }
+
+    /** Reads the version, author and number of operations of a delta. */
+    static Summary summarize(byte[] delta) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(delta);
+        long version = -1;
+        String author = null;
+        int operation_count = 0;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (tag == DELTA_HASHED_VERSION_TAG) {
+                int limit = in.pushLimit(in.readRawVarint32());
+                for (int version_tag = in.readTag(); version_tag != 0; version_tag = in.readTag()) {
+                    if (version_tag == VERSION_TAG) {
+                        version = in.readInt64();
+                    } else {
+                        in.skipField(version_tag);
+                    }
+                }
+                in.popLimit(limit);
+            } else if (tag == DELTA_AUTHOR_TAG) {
+                author = in.readString();
+            } else {
+                if (tag == DELTA_OPERATION_TAG) {
+                    operation_count++;
+                }
+                in.skipField(tag);
+            }
+        }
+        if (version == -1 || author == null) {
+            throw new InvalidProtocolBufferException("Delta has no hashed version or author");
+        }
+        return new Summary(version, author, operation_count);
+    }
+
+    /**
+     * Returns the delta with the hashed version replaced by
+     * {@code hashedVersion}, if not null, and participants and documents
+     * rewritten.
+     */
+    static byte[] rewrite(byte[] delta, ProtocolHashedVersion hashedVersion, Rewrites rewrites)
+            throws IOException {
+        ByteString.Output bytes = ByteString.newOutput(delta.length + 64);
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        rewrite(delta, hashedVersion, rewrites, out, true);
+        out.flush();
+        return bytes.toByteString().toByteArray();
+    }
+
+    /**
+     * Passes the author and participants of the delta to the rewrites
+     * without producing a new delta, for deltas which are already imported.
+     */
+    static void scanParticipants(byte[] delta, Rewrites rewrites) throws IOException {
+        rewrite(delta, null, rewrites, null, false);
+    }
+
+    /**
+     * Passes the author, participants and documents referring to attachments
+     * of the delta to the rewrites without producing a new delta, for
+     * deltas which are imported but whose attachments are not.
+     */
+    static void scanDocuments(byte[] delta, Rewrites rewrites) throws IOException {
+        rewrite(delta, null, rewrites, null, true);
+    }
+
+    /** Rewrites into {@code out}, or only scans if it is null. */
+    private static void rewrite(byte[] delta, ProtocolHashedVersion hashedVersion, Rewrites rewrites,
+            CodedOutputStream out, boolean rewriteDocuments) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(delta);
+        for (;;) {
+            int start = in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (tag == DELTA_HASHED_VERSION_TAG && hashedVersion != null) {
+                in.skipField(tag);
+                out.writeMessage(ProtocolWaveletDelta.HASHED_VERSION_FIELD_NUMBER, hashedVersion);
+            } else if (tag == DELTA_AUTHOR_TAG) {
+                String author = in.readString();
+                String new_author = rewrites.convertParticipant(author);
+                if (out != null) {
+                    if (new_author.equals(author)) {
+                        out.writeRawBytes(delta, start, in.getTotalBytesRead() - start);
+                    } else {
+                        out.writeString(ProtocolWaveletDelta.AUTHOR_FIELD_NUMBER, new_author);
+                    }
+                }
+            } else if (tag == DELTA_OPERATION_TAG) {
+                int length = in.readRawVarint32();
+                int offset = in.getTotalBytesRead();
+                in.skipRawBytes(length);
+                byte[] new_op = rewriteOperation(delta, offset, length, rewrites, rewriteDocuments);
+                if (out != null) {
+                    if (new_op == null) {
+                        out.writeRawBytes(delta, start, in.getTotalBytesRead() - start);
+                    } else {
+                        out.writeTag(ProtocolWaveletDelta.OPERATION_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+                        out.writeRawVarint32(new_op.length);
+                        out.writeRawBytes(new_op);
+                    }
+                }
+            } else {
+                in.skipField(tag);
+                if (out != null) {
+                    out.writeRawBytes(delta, start, in.getTotalBytesRead() - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites an operation stored at {@code buf[offset, offset + length)}.
+     * Returns null if nothing changes, the copy is only started at the first
+     * changed field.
+     */
+    private static byte[] rewriteOperation(byte[] buf, int offset, int length, Rewrites rewrites,
+            boolean rewriteDocuments) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(buf, offset, length);
+        // Positions are relative to offset whatever the protobuf version.
+        int base = in.getTotalBytesRead();
+        ByteString.Output bytes = null;
+        CodedOutputStream out = null;
+        for (;;) {
+            int start = offset + in.getTotalBytesRead() - base;
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            int field_number = tag >>> 3;
+            String new_participant = null;
+            MutateDocument new_document = null;
+            if (tag == ADD_PARTICIPANT_TAG || tag == REMOVE_PARTICIPANT_TAG) {
+                String participant = in.readString();
+                String converted = rewrites.convertParticipant(participant);
+                if (!converted.equals(participant)) {
+                    new_participant = converted;
+                }
+            } else if (tag == MUTATE_DOCUMENT_TAG && rewriteDocuments) {
+                int document_length = in.readRawVarint32();
+                int document_offset = offset + in.getTotalBytesRead() - base;
+                in.skipRawBytes(document_length);
+                if (contains(buf, document_offset, document_length, ATTACHMENT_MARKER)) {
+                    new_document = rewrites.rewriteDocument(MutateDocument.parseFrom(
+                            CodedInputStream.newInstance(buf, document_offset, document_length)));
+                }
+            } else {
+                in.skipField(tag);
+            }
+            if (new_participant == null && new_document == null) {
+                if (out != null) {
+                    out.writeRawBytes(buf, start, offset + in.getTotalBytesRead() - base - start);
+                }
+                continue;
+            }
+            if (out == null) {
+                bytes = ByteString.newOutput(length + 64);
+                out = CodedOutputStream.newInstance(bytes);
+                out.writeRawBytes(buf, offset, start - offset);
+            }
+            if (new_participant != null) {
+                out.writeString(field_number, new_participant);
+            } else {
+                out.writeMessage(field_number, new_document);
+            }
+        }
+        if (out == null) {
+            return null;
+        }
+        out.flush();
+        return bytes.toByteString().toByteArray();
+    }
+
+    private static boolean contains(byte[] buf, int offset, int length, byte[] pattern) {
+        int end = offset + length - pattern.length;
+        outer:
+        for (int i = offset; i <= end; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buf[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static int tag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+}
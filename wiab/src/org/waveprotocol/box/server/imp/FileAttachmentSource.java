@@ -0,0 +1,32 @@
+package org.waveprotocol.box.server.imp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads attachments from a local directory, one file per attachment named by
+ * its id. Stands in for the attachment server when it is not reachable, or
+ * when attachments were downloaded beforehand.
+ *
+ * @author A. Kaplanov
+ */
+public class FileAttachmentSource implements AttachmentSource {
+
+    private final File dir;
+
+    public FileAttachmentSource(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public InputStream open(String attachmentId, String path) throws IOException {
+        // Ids come from exports, they must not lead out of the directory.
+        File file = new File(dir, attachmentId);
+        if (!file.getCanonicalFile().getParentFile().equals(dir.getCanonicalFile())) {
+            throw new IOException("Bad attachment id " + attachmentId);
+        }
+        return new FileInputStream(file);
+    }
+}
@@ -0,0 +1,91 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+/**
+ * Profiles the import of an export directory without a wave server, see
+ * {@link WaveletImporter#dryRun}, and prints the {@link ImportProfile}
+ * report. Run with the classpath of the wave server:
+ * {@code ImportDryRun <Domain> <ExportDir> [<Threads>]}.
+ *
+ * Wavelets are run by one thread by default, so that stage times are not
+ * skewed by contention.
+ *
+ * @author A. Kaplanov
+ */
+public final class ImportDryRun {
+
+    private ImportDryRun() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Use: ImportDryRun <Domain> <ExportDir> [<Threads>]");
+            return;
+        }
+        final String domain = args[0];
+        File[] files = new File(args[1]).listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith("#json");
+            }
+        });
+        if (files == null) {
+            System.err.println("Can't list " + args[1]);
+            return;
+        }
+        Arrays.sort(files);
+        int threads = args.length == 3 ? Integer.parseInt(args[2]) : 1;
+        // A dry run uses neither the wave server, the index nor attachments.
+        final WaveletImporter importer = new WaveletImporter(null, null, null);
+        final ImportProfile profile = new ImportProfile();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("ImportDryRun-%d").build());
+        for (final File file : files) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        StringTokenizer st = new StringTokenizer(file.getName(), "#");
+                        WaveletName name = WaveletName.of(
+                                WaveId.of(domain, WaveId.deserialise(st.nextToken()).getId()),
+                                WaveletId.of(domain, WaveletId.deserialise(st.nextToken()).getId()));
+                        Reader reader = new InputStreamReader(new FileInputStream(file), "utf8");
+                        try {
+                            importer.dryRun(domain, name, reader, profile);
+                        } finally {
+                            reader.close();
+                        }
+                    } catch (IOException ex) {
+                        System.err.println(file.getName() + " " + ex.getMessage());
+                    } catch (RuntimeException ex) {
+                        System.err.println(file.getName() + " " + ex);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        Writer writer = new OutputStreamWriter(System.out, "utf8");
+        profile.write(writer);
+        writer.flush();
+    }
+}
@@ -0,0 +1,247 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.gxp.org.apache.xerces.impl.dv.util.Base64;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.util.logging.Log;
+
+/**
+ * Persisted index of imported wavelets and the last version applied to each,
+ * so that the import servlet neither loads snapshots to decide whether to
+ * skip, nor restarts partially imported wavelets from scratch.
+ *
+ * The index is an append-only text file, one line per update:
+ * {@code <waveId> <waveletId> <version> <base64 history hash> <state>}, where
+ * state is {@code complete} once a whole export of the wavelet has been
+ * applied and {@code partial} otherwise. Lines of older indexes have no
+ * state and are taken as partial, since they were also written after parts
+ * of a history. Later lines win. A Bloom filter in front
+ * of the map answers most lookups of never-imported wavelets without
+ * touching it.
+ *
+ * A last line torn by a crash is cut off before more lines are appended.
+ *
+ * The file location is taken from the {@code wave.import.index} system
+ * property.
+ *
+ * @author A. Kaplanov
+ */
+@Singleton
+public class ImportIndex {
+
+    private static final Log LOG = Log.get(ImportIndex.class);
+
+    public static final String INDEX_FILE_PROPERTY = "wave.import.index";
+    private static final String DEFAULT_INDEX_FILE = "_import/wavelets.index";
+    private static final int EXPECTED_WAVELETS = 1000000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final BloomFilter filter;
+    private final Writer writer;
+
+    /** Import state of a single wavelet. */
+    public static final class Entry {
+
+        private final HashedVersion version;
+        private final boolean complete;
+
+        public Entry(HashedVersion version, boolean complete) {
+            this.version = version;
+            this.complete = complete;
+        }
+
+        /** Last version applied to the wavelet. */
+        public HashedVersion getVersion() {
+            return version;
+        }
+
+        /** Whether the whole exported history has been applied. */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    @Inject
+    public ImportIndex() throws IOException {
+        this(new File(System.getProperty(INDEX_FILE_PROPERTY, DEFAULT_INDEX_FILE)));
+        Runtime.getRuntime().addShutdownHook(new Thread("ImportIndex-close") {
+            @Override
+            public void run() {
+                try {
+                    close();
+                } catch (IOException ex) {
+                    LOG.warning("Can't close import index " + file, ex);
+                }
+            }
+        });
+    }
+
+    public ImportIndex(File file) throws IOException {
+        this.file = file;
+        int lines = load();
+        filter = new BloomFilter(Math.max(EXPECTED_WAVELETS, entries.size() * 2), FALSE_POSITIVE_RATE);
+        for (String key : entries.keySet()) {
+            filter.put(key);
+        }
+        if (lines > entries.size() * 2) {
+            compact();
+        }
+        writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        LOG.info("Import index " + file + " has " + entries.size() + " wavelets");
+    }
+
+    /**
+     * Returns the import state of the wavelet, or null if nothing of it has
+     * been imported.
+     */
+    public synchronized Entry getEntry(WaveletName name) {
+        String key = key(name.waveId, name.waveletId);
+        if (!filter.mightContain(key)) {
+            return null;
+        }
+        return entries.get(key);
+    }
+
+    /**
+     * Returns the last version imported for the wavelet, or null if nothing of
+     * it has been imported.
+     */
+    public HashedVersion getImportedVersion(WaveletName name) {
+        Entry entry = getEntry(name);
+        return entry != null ? entry.getVersion() : null;
+    }
+
+    /** Records that the wavelet has been imported up to {@code version}. */
+    public void setImportedVersion(WaveletName name, HashedVersion version) throws IOException {
+        setImportedVersion(name, version, false);
+    }
+
+    /**
+     * Records that the wavelet has been imported up to {@code version}, and
+     * whether that is the end of its exported history.
+     */
+    public synchronized void setImportedVersion(WaveletName name, HashedVersion version,
+            boolean complete) throws IOException {
+        String key = key(name.waveId, name.waveletId);
+        Entry old = entries.get(key);
+        if (old != null && old.getVersion().getVersion() > version.getVersion()) {
+            return;
+        }
+        if (old != null && old.getVersion().getVersion() == version.getVersion()
+                && old.isComplete() == complete) {
+            return;
+        }
+        Entry entry = new Entry(version, complete);
+        entries.put(key, entry);
+        filter.put(key);
+        writeEntry(writer, key, entry);
+        writer.flush();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Closes the file, later updates fail. */
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private static String key(WaveId waveId, WaveletId waveletId) {
+        return waveId.serialise() + " " + waveletId.serialise();
+    }
+
+    private static void writeEntry(Writer w, String key, Entry entry) throws IOException {
+        HashedVersion version = entry.getVersion();
+        w.write(key + " " + version.getVersion() + " " + Base64.encode(version.getHistoryHash())
+                + " " + (entry.isComplete() ? "complete" : "partial") + "\n");
+    }
+
+    private int load() throws IOException {
+        // Interrupted compaction
+        AtomicFiles.recover(file);
+        if (!file.exists()) {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Can't create directory " + dir);
+            }
+            return 0;
+        }
+        truncateTornLine();
+        int lines = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                StringTokenizer st = new StringTokenizer(line, " ");
+                int tokens = st.countTokens();
+                if (tokens != 4 && tokens != 5) {
+                    LOG.warning("Ignoring malformed import index line: " + line);
+                    continue;
+                }
+                String key = st.nextToken() + " " + st.nextToken();
+                long version = Long.parseLong(st.nextToken());
+                byte[] hash = Base64.decode(st.nextToken());
+                // Older indexes have no state, and were also written for parts of a history.
+                boolean complete = tokens == 5 && "complete".equals(st.nextToken());
+                entries.put(key, new Entry(HashedVersion.of(version, hash), complete));
+                lines++;
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /** Cuts off the end of the file after its last line break. */
+    private void truncateTornLine() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            long end = length;
+            while (end > 0) {
+                raf.seek(end - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end < length) {
+                LOG.warning("Truncating torn last line of import index " + file);
+                raf.setLength(end);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeEntry(w, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            w.close();
+        }
+        AtomicFiles.replace(tmp, file);
+    }
+}
@@ -0,0 +1,490 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.walkaround.proto.GoogleImport.ImportTaskPayload;
+import com.google.walkaround.proto.GoogleImport.ImportWaveTask;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+/**
+ * Persistent queue of import jobs, replayed by a pool of workers in the
+ * background, so that import requests return as soon as the data is spooled.
+ *
+ * Each job is an {@link ImportTaskPayload} kept in the queue directory with
+ * the files:
+ * <ul>
+ * <li>{@code <id>.task} - the payload, its presence makes the job exist;</li>
+ * <li>{@code <id>.wavelets} - spooled exports of the wave's wavelets, in the
+ * frame format of {@link BulkImportServlet}, removed once imported;</li>
+ * <li>{@code <id>.state} - {@code <state> <done> <total> [<message>]}.</li>
+ * </ul>
+ * Jobs which were queued or running when the server stopped are queued again
+ * on start. Wavelets already applied are skipped by the {@link ImportIndex},
+ * so a rerun job continues where it was interrupted.
+ *
+ * Only {@link ImportWaveTask} jobs are run here, finding remote waves is
+ * left to the exporting side.
+ *
+ * Files of ids without a task, left when the server stopped while a job
+ * was being added or removed, are deleted on start.
+ *
+ * Finished jobs are removed, with their files, when they are older than
+ * {@code wave.import.queue.retentionHours} (default a week); the queue is
+ * swept as jobs are added and on start.
+ *
+ * The directory and number of workers are taken from the
+ * {@code wave.import.queue.dir} and {@code wave.import.queue.threads} system
+ * properties.
+ *
+ * @author A. Kaplanov
+ */
+@Singleton
+public class ImportJobQueue {
+
+    private static final Log LOG = Log.get(ImportJobQueue.class);
+
+    public static final String DIR_PROPERTY = "wave.import.queue.dir";
+    public static final String THREADS_PROPERTY = "wave.import.queue.threads";
+    public static final String RETENTION_PROPERTY = "wave.import.queue.retentionHours";
+    private static final String DEFAULT_DIR = "_import/queue";
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_RETENTION_HOURS = 7 * 24;
+
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private static final String TASK_SUFFIX = ".task";
+    private static final String WAVELETS_SUFFIX = ".wavelets";
+    private static final String STATE_SUFFIX = ".state";
+
+    private final WaveletImporter waveletImporter;
+    private final File dir;
+    private final ExecutorService executor;
+    private final long retentionMillis = Integer.getInteger(RETENTION_PROPERTY, DEFAULT_RETENTION_HOURS) * 3600000L;
+    private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /** Progress of a single job. */
+    public static final class Job {
+
+        private final String id;
+        private final ImportTaskPayload task;
+        private volatile String state;
+        private volatile int done;
+        private volatile int total;
+        private volatile String message;
+        // Time the job was done or failed
+        private volatile long finished = 0;
+
+        private Job(String id, ImportTaskPayload task, String state, int done, int total, String message) {
+            this.id = id;
+            this.task = task;
+            this.state = state;
+            this.done = done;
+            this.total = total;
+            this.message = message;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public ImportTaskPayload getTask() {
+            return task;
+        }
+
+        /** One of {@code queued}, {@code running}, {@code done} or {@code failed}. */
+        public String getState() {
+            return state;
+        }
+
+        /** Number of wavelets processed so far. */
+        public int getDone() {
+            return done;
+        }
+
+        /** Number of wavelets in the job. */
+        public int getTotal() {
+            return total;
+        }
+
+        /** Error of a failed job, or null. */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    @Inject
+    public ImportJobQueue(WaveletImporter waveletImporter) throws IOException {
+        this(waveletImporter, new File(System.getProperty(DIR_PROPERTY, DEFAULT_DIR)),
+                Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS));
+    }
+
+    public ImportJobQueue(WaveletImporter waveletImporter, File dir, int threads) throws IOException {
+        this.waveletImporter = waveletImporter;
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Can't create directory " + dir);
+        }
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("ImportQueue-%d").setDaemon(true).build());
+        recover();
+    }
+
+    /**
+     * Spools the export of a wavelet and queues its import.
+     *
+     * @param domain target domain, as for {@link ImportServlet}
+     * @param name wavelet to import
+     * @param export exported wavelet, a JSON value written by WaveExport
+     * @return id of the queued job
+     * @throws IllegalArgumentException if domain is null
+     */
+    public String enqueue(String domain, WaveletName name, Reader export) throws IOException {
+        if (domain == null) {
+            throw new IllegalArgumentException("No target domain");
+        }
+        removeExpiredJobs();
+        String id = newJobId();
+        ImportTaskPayload task = ImportTaskPayload.newBuilder()
+                .setImportWaveTask(ImportWaveTask.newBuilder()
+                        .setInstance(domain)
+                        .setWaveId(name.waveId.serialise()))
+                .build();
+        Job job = new Job(id, task, QUEUED, 0, 1, null);
+        boolean spooled = false;
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file(id, WAVELETS_SUFFIX)), "UTF-8");
+            try {
+                writer.write("{\"waveId\":" + JSONObject.quote(name.waveId.serialise())
+                        + ",\"waveletId\":" + JSONObject.quote(name.waveletId.serialise())
+                        + ",\"export\":");
+                copyWithoutLineBreaks(export, writer);
+                writer.write("}\n");
+            } finally {
+                writer.close();
+            }
+            writeState(job);
+            writeTask(id, task);
+            spooled = true;
+        } finally {
+            if (!spooled) {
+                deleteFiles(id);
+            }
+        }
+        jobs.put(id, job);
+        submit(job);
+        return id;
+    }
+
+    /** Returns the job, or null if there is no such job. */
+    public Job getJob(String id) {
+        return jobs.get(id);
+    }
+
+    public Collection<Job> getJobs() {
+        return Collections.unmodifiableCollection(jobs.values());
+    }
+
+    private void submit(final Job job) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                runJob(job);
+            }
+        });
+    }
+
+    private void runJob(Job job) {
+        job.state = RUNNING;
+        job.done = 0;
+        try {
+            writeState(job);
+            if (!job.task.hasImportWaveTask()) {
+                throw new IOException("Unsupported task " + job.task);
+            }
+            String domain = job.task.getImportWaveTask().getInstance();
+            String errors = null;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file(job.id, WAVELETS_SUFFIX)), "UTF-8"));
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    String error = importFrame(domain, line);
+                    if (error != null && errors == null) {
+                        errors = error;
+                    }
+                    job.done++;
+                    writeState(job);
+                }
+            } finally {
+                reader.close();
+            }
+            if (errors != null) {
+                job.message = errors;
+                job.state = FAILED;
+            } else {
+                job.state = DONE;
+                file(job.id, WAVELETS_SUFFIX).delete();
+            }
+        } catch (IOException ex) {
+            LOG.warning("Import job " + job.id + " failed", ex);
+            job.message = String.valueOf(ex.getMessage());
+            job.state = FAILED;
+        } catch (RuntimeException ex) {
+            LOG.warning("Import job " + job.id + " failed", ex);
+            job.message = ex.toString();
+            job.state = FAILED;
+        }
+        job.finished = System.currentTimeMillis();
+        try {
+            writeState(job);
+        } catch (IOException ex) {
+            LOG.warning("Can't write state of import job " + job.id, ex);
+        }
+    }
+
+    /** Imports a spooled wavelet, returns the error or null. */
+    private String importFrame(String domain, String frame) {
+        String wave_id = null;
+        String wavelet_id = null;
+        try {
+            JSONObject json = new JSONObject(frame);
+            wave_id = json.getString("waveId");
+            wavelet_id = json.getString("waveletId");
+            WaveletName name = WaveletName.of(WaveId.deserialise(wave_id), WaveletId.deserialise(wavelet_id));
+            waveletImporter.importWavelet(domain, name, WaveletImporter.parseDeltas(json.getJSONObject("export")));
+            return null;
+        } catch (JSONException ex) {
+            LOG.warning("Malformed spooled wavelet", ex);
+            return "Malformed frame: " + ex.getMessage();
+        } catch (IOException ex) {
+            LOG.warning("Can't import " + wave_id + " " + wavelet_id, ex);
+            return wave_id + " " + wavelet_id + ": " + ex.getMessage();
+        } catch (RuntimeException ex) {
+            LOG.warning("Can't import " + wave_id + " " + wavelet_id, ex);
+            return wave_id + " " + wavelet_id + ": " + ex;
+        }
+    }
+
+    /**
+     * Loads jobs from the directory, queueing again the ones which have not
+     * finished.
+     */
+    private void recover() throws IOException {
+        String[] names = dir.list(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(TASK_SUFFIX);
+            }
+        });
+        if (names == null) {
+            throw new IOException("Can't list " + dir);
+        }
+        // Ids sort in order of enqueueing.
+        Arrays.sort(names);
+        int requeued = 0;
+        for (String name : names) {
+            String id = name.substring(0, name.length() - TASK_SUFFIX.length());
+            Job job = readJob(id);
+            if (job == null) {
+                continue;
+            }
+            jobs.put(id, job);
+            if (DONE.equals(job.state) || FAILED.equals(job.state)) {
+                job.finished = file(id, STATE_SUFFIX).lastModified();
+            } else {
+                job.state = QUEUED;
+                submit(job);
+                requeued++;
+            }
+        }
+        deleteOrphanedFiles();
+        removeExpiredJobs();
+        LOG.info("Import queue " + dir + " has " + jobs.size() + " jobs, " + requeued + " queued");
+    }
+
+    /**
+     * Deletes the spooled exports and states of jobs without a task, left by
+     * a stop while a job was being added or removed.
+     */
+    private void deleteOrphanedFiles() {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        Set<String> orphans = new HashSet<String>();
+        for (String name : names) {
+            int dot = name.indexOf('.');
+            if (dot <= 0) {
+                continue;
+            }
+            String id = name.substring(0, dot);
+            String suffix = name.substring(dot);
+            if ((suffix.startsWith(WAVELETS_SUFFIX) || suffix.startsWith(STATE_SUFFIX)
+                    || suffix.startsWith(TASK_SUFFIX + ".")) && !file(id, TASK_SUFFIX).exists()) {
+                orphans.add(id);
+            }
+        }
+        for (String id : orphans) {
+            LOG.warning("Deleting files of import job " + id + " without a task");
+            deleteFiles(id);
+            file(id, TASK_SUFFIX + ".tmp").delete();
+            file(id, STATE_SUFFIX + ".tmp").delete();
+        }
+    }
+
+    /** Removes jobs which finished longer than the retention time ago. */
+    private void removeExpiredJobs() {
+        long expired = System.currentTimeMillis() - retentionMillis;
+        for (Job job : jobs.values()) {
+            if (job.finished != 0 && job.finished < expired && jobs.remove(job.id, job)) {
+                deleteFiles(job.id);
+            }
+        }
+    }
+
+    private void deleteFiles(String id) {
+        // The task first, a job without it does not exist.
+        file(id, TASK_SUFFIX).delete();
+        file(id, WAVELETS_SUFFIX).delete();
+        AtomicFiles.delete(file(id, STATE_SUFFIX));
+    }
+
+    private Job readJob(String id) {
+        ImportTaskPayload task;
+        try {
+            InputStream in = new FileInputStream(file(id, TASK_SUFFIX));
+            try {
+                task = ImportTaskPayload.parseFrom(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            LOG.warning("Ignoring unreadable import job " + id, ex);
+            return null;
+        }
+        String state = QUEUED;
+        int done = 0;
+        int total = 0;
+        String message = null;
+        try {
+            AtomicFiles.recover(file(id, STATE_SUFFIX));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file(id, STATE_SUFFIX)), "UTF-8"));
+            try {
+                String line = reader.readLine();
+                StringTokenizer st = new StringTokenizer(line != null ? line : "", " ");
+                if (st.countTokens() >= 3) {
+                    state = st.nextToken();
+                    done = Integer.parseInt(st.nextToken());
+                    total = Integer.parseInt(st.nextToken());
+                    if (st.hasMoreTokens()) {
+                        message = st.nextToken("\n").trim();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            // Crashed before the state was written, the job is run again.
+        } catch (NumberFormatException ex) {
+            LOG.warning("Malformed state of import job " + id, ex);
+        }
+        return new Job(id, task, state, done, total, message);
+    }
+
+    private void writeTask(String id, ImportTaskPayload task) throws IOException {
+        File tmp = file(id, TASK_SUFFIX + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            task.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file(id, TASK_SUFFIX))) {
+            throw new IOException("Can't rename " + tmp);
+        }
+    }
+
+    private void writeState(Job job) throws IOException {
+        File file = file(job.id, STATE_SUFFIX);
+        File tmp = file(job.id, STATE_SUFFIX + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            writer.write(job.state + " " + job.done + " " + job.total);
+            if (job.message != null) {
+                writer.write(" " + job.message.replace('\n', ' ').replace('\r', ' '));
+            }
+            writer.write("\n");
+        } finally {
+            writer.close();
+        }
+        AtomicFiles.replace(tmp, file);
+    }
+
+    private File file(String id, String suffix) {
+        return new File(dir, id + suffix);
+    }
+
+    private String newJobId() {
+        return String.format("%012x%04x", System.currentTimeMillis(), sequence.getAndIncrement() & 0xffff);
+    }
+
+    /**
+     * Copies an exported wavelet, which is a single JSON value, into the
+     * frame. Line breaks can only be whitespace between JSON tokens there.
+     */
+    private static void copyWithoutLineBreaks(Reader reader, Writer writer) throws IOException {
+        char buf[] = new char[8192];
+        for (;;) {
+            int ret = reader.read(buf, 0, buf.length);
+            if (ret == -1) {
+                break;
+            }
+            int start = 0;
+            for (int i = 0; i < ret; i++) {
+                if (buf[i] == '\n' || buf[i] == '\r') {
+                    writer.write(buf, start, i - start);
+                    start = i + 1;
+                }
+            }
+            writer.write(buf, start, ret - start);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.waveprotocol.box.server.imp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+/**
+ * Time, allocation and throughput of the stages of dry run imports, see
+ * {@link WaveletImporter#dryRun}, with the slowest wavelets and the
+ * distribution of delta sizes.
+ *
+ * Allocated bytes are taken from the per thread counters of the HotSpot
+ * {@code com.sun.management.ThreadMXBean}, looked up by name, and are not
+ * reported on JVMs without them. Stage times are summed over threads, so with wavelets run
+ * in parallel they add up to more than the elapsed time.
+ *
+ * Thread-safe, a {@link Timer} is used by one thread.
+ *
+ * @author A. Kaplanov
+ */
+public final class ImportProfile {
+
+    /** Stages of an import, in order. */
+    public enum Stage {
+        READ("body read"),
+        JSON("JSON parse"),
+        BASE64("base64 decode"),
+        PROTOBUF("protobuf parse"),
+        REWRITE("domain rewrite"),
+        HASH("hash chaining");
+
+        private final String title;
+
+        Stage(String title) {
+            this.title = title;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+    }
+
+    private static final int SLOWEST_COUNT = 20;
+    // Delta sizes are counted by powers of two from this.
+    private static final int MIN_SIZE_BUCKET = 64;
+    private static final int SIZE_BUCKETS = 20;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final Method ALLOCATION_COUNTER = getAllocationCounter();
+
+    private final long started = System.nanoTime();
+    private final long[] stageNanos = new long[Stage.values().length];
+    private final long[] stageAllocated = new long[Stage.values().length];
+    private final long[] stageBytes = new long[Stage.values().length];
+    private final long[] sizeCounts = new long[SIZE_BUCKETS];
+    private final PriorityQueue<Timer> slowest = new PriorityQueue<Timer>(SLOWEST_COUNT + 1, new Comparator<Timer>() {
+
+        @Override
+        public int compare(Timer t1, Timer t2) {
+            return t1.totalNanos < t2.totalNanos ? -1 : t1.totalNanos > t2.totalNanos ? 1 : 0;
+        }
+    });
+    private int wavelets = 0;
+    private int failed = 0;
+    private long deltas = 0;
+
+    /**
+     * Times a wavelet. Time and allocation between calls of
+     * {@link #mark} go to the stage given to the later call.
+     */
+    public static class Timer {
+
+        /** Timer of imports which are not profiled, does nothing. */
+        static final Timer NONE = new Timer(null, null);
+
+        private final ImportProfile profile;
+        private final WaveletName name;
+        private final long[] nanos = new long[Stage.values().length];
+        private final long[] allocated = new long[Stage.values().length];
+        private final long[] bytes = new long[Stage.values().length];
+        private final long[] sizeCounts = new long[SIZE_BUCKETS];
+        private long lastTime;
+        private long lastAllocated;
+        private long totalNanos = 0;
+        private long totalBytes = 0;
+        private int deltas = 0;
+
+        private Timer(ImportProfile profile, WaveletName name) {
+            this.profile = profile;
+            this.name = name;
+            if (profile != null) {
+                lastAllocated = getAllocatedBytes();
+                lastTime = System.nanoTime();
+            }
+        }
+
+        /** Ends a stage which processed {@code count} bytes or characters. */
+        void mark(Stage stage, long count) {
+            if (profile == null) {
+                return;
+            }
+            long time = System.nanoTime();
+            long allocated_bytes = getAllocatedBytes();
+            nanos[stage.ordinal()] += time - lastTime;
+            allocated[stage.ordinal()] += allocated_bytes - lastAllocated;
+            bytes[stage.ordinal()] += count;
+            // The counters themselves are left out.
+            lastAllocated = getAllocatedBytes();
+            lastTime = System.nanoTime();
+        }
+
+        /** Counts a serialized delta of the wavelet. */
+        void delta(int size) {
+            if (profile == null) {
+                return;
+            }
+            deltas++;
+            totalBytes += size;
+            sizeCounts[getSizeBucket(size)]++;
+        }
+
+        /** Adds the wavelet to the profile. */
+        void finish(boolean ok) {
+            if (profile != null) {
+                for (long stage_nanos : nanos) {
+                    totalNanos += stage_nanos;
+                }
+                profile.add(this, ok);
+            }
+        }
+    }
+
+    /** Starts timing a wavelet, the time before goes to no stage. */
+    public Timer startWavelet(WaveletName name) {
+        return new Timer(this, name);
+    }
+
+    private synchronized void add(Timer timer, boolean ok) {
+        if (!ok) {
+            failed++;
+            return;
+        }
+        wavelets++;
+        deltas += timer.deltas;
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] += timer.nanos[i];
+            stageAllocated[i] += timer.allocated[i];
+            stageBytes[i] += timer.bytes[i];
+        }
+        for (int i = 0; i < sizeCounts.length; i++) {
+            sizeCounts[i] += timer.sizeCounts[i];
+        }
+        slowest.add(timer);
+        if (slowest.size() > SLOWEST_COUNT) {
+            slowest.poll();
+        }
+    }
+
+    /**
+     * Writes the report: totals, a line per stage with time, share of the
+     * time, allocated MB and throughput in MB/s of its input, the slowest
+     * wavelets, and the number of deltas per size up to a power of two.
+     */
+    public synchronized void write(Writer writer) throws IOException {
+        long total_nanos = 0;
+        for (long stage_nanos : stageNanos) {
+            total_nanos += stage_nanos;
+        }
+        writer.write(String.format("wavelets %d failed %d deltas %d elapsed %.1f ms stages %.1f ms\n",
+                wavelets, failed, deltas, (System.nanoTime() - started) / 1e6, total_nanos / 1e6));
+        writer.write(String.format("%-16s %10s %6s %12s %10s\n", "stage", "ms", "%", "allocated MB", "MB/s"));
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            writer.write(String.format("%-16s %10.1f %6.1f %12s %10.1f\n", stage.getTitle(), stageNanos[i] / 1e6,
+                    total_nanos != 0 ? stageNanos[i] * 100.0 / total_nanos : 0.0,
+                    ALLOCATION_COUNTER != null ? String.format("%.1f", stageAllocated[i] / 1048576.0) : "-",
+                    stageNanos[i] != 0 ? stageBytes[i] / 1048576.0 / (stageNanos[i] / 1e9) : 0.0));
+        }
+        writer.write("slowest wavelets\n");
+        List<Timer> timers = new ArrayList<Timer>(slowest);
+        Collections.sort(timers, Collections.reverseOrder(slowest.comparator()));
+        for (Timer timer : timers) {
+            writer.write(String.format("%10.1f ms %8d deltas %10d bytes %s %s\n", timer.totalNanos / 1e6,
+                    timer.deltas, timer.totalBytes, timer.name.waveId.serialise(), timer.name.waveletId.serialise()));
+        }
+        writer.write("delta sizes\n");
+        long counted = 0;
+        for (int i = 0; i < sizeCounts.length; i++) {
+            if (sizeCounts[i] == 0) {
+                continue;
+            }
+            counted += sizeCounts[i];
+            writer.write(String.format("%s %10d bytes %10d %6.1f%%\n", i == sizeCounts.length - 1 ? ">" : "<=",
+                    (long) MIN_SIZE_BUCKET << Math.min(i, sizeCounts.length - 2), sizeCounts[i],
+                    counted * 100.0 / deltas));
+        }
+    }
+
+    /** Bucket of a delta size, the last one takes all larger deltas. */
+    private static int getSizeBucket(int size) {
+        if (size <= MIN_SIZE_BUCKET) {
+            return 0;
+        }
+        int bucket = 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE_BUCKET);
+        return Math.min(bucket, SIZE_BUCKETS - 1);
+    }
+
+    private static long getAllocatedBytes() {
+        if (ALLOCATION_COUNTER == null) {
+            return 0;
+        }
+        try {
+            return (Long) ALLOCATION_COUNTER.invoke(THREADS, Thread.currentThread().getId());
+        } catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the per thread allocation counter of HotSpot, or null. The class
+     * is not referred to directly, so this class also loads on other JVMs.
+     */
+    private static Method getAllocationCounter() {
+        try {
+            Class<?> counters = Class.forName("com.sun.management.ThreadMXBean");
+            if (counters.isInstance(THREADS)
+                    && (Boolean) counters.getMethod("isThreadAllocatedMemorySupported").invoke(THREADS)
+                    && (Boolean) counters.getMethod("isThreadAllocatedMemoryEnabled").invoke(THREADS)) {
+                return counters.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception ex) {
+            // No counters
+        }
+        return null;
+    }
+}
@@ -0,0 +1,98 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+/**
+ * Front of the {@link ImportJobQueue}.
+ *
+ * POST takes the same headers and body as {@link ImportServlet}, spools the
+ * wavelet and answers the job id as soon as it is queued.
+ * GET with an {@code id} parameter answers the job progress:
+ * {@code <id> <state> <done> <total> [<message>]}; without it, the number of
+ * jobs in each state, a {@code <state> <count>} line each.
+ *
+ * @author A. Kaplanov
+ */
+@SuppressWarnings("serial")
+@Singleton
+public class ImportQueueServlet extends HttpServlet {
+
+    private final ImportJobQueue queue;
+
+    @Inject
+    private ImportQueueServlet(ImportJobQueue queue) {
+        this.queue = queue;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String domain = request.getHeader("domain");
+        if (domain == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No domain header");
+            return;
+        }
+        WaveletName name;
+        try {
+            name = WaveletName.of(WaveId.deserialise(request.getHeader("waveId")),
+                    WaveletId.deserialise(request.getHeader("waveletId")));
+        } catch (IllegalArgumentException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+        Reader reader;
+        try {
+            reader = RequestBodies.getReader(request);
+        } catch (RequestBodies.UnsupportedContentEncodingException ex) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, ex.getMessage());
+            return;
+        }
+        String id = queue.enqueue(domain, name, reader);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain; charset=UTF-8");
+        response.getWriter().print(id);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String id = request.getParameter("id");
+        if (id != null) {
+            ImportJobQueue.Job job = queue.getJob(id);
+            if (job == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "No import job " + id);
+                return;
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/plain; charset=UTF-8");
+            response.getWriter().print(job.getId() + " " + job.getState() + " " + job.getDone() + " " + job.getTotal()
+                    + (job.getMessage() != null ? " " + job.getMessage() : "") + "\n");
+            return;
+        }
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (ImportJobQueue.Job job : queue.getJobs()) {
+            Integer count = counts.get(job.getState());
+            counts.put(job.getState(), count == null ? 1 : count + 1);
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain; charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        for (String state : new String[] {
+                ImportJobQueue.QUEUED, ImportJobQueue.RUNNING, ImportJobQueue.DONE, ImportJobQueue.FAILED }) {
+            Integer count = counts.get(state);
+            writer.print(state + " " + (count == null ? 0 : count) + "\n");
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,85 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.StringTokenizer;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+/**
+ * Answers the import state of a batch of wavelets, so that the importer can
+ * avoid uploading wavelets which are already imported.
+ *
+ * Request body is one wavelet per line: {@code <waveId> <waveletId>}.
+ * Response body has a line per requested wavelet, in the same order:
+ * {@code <waveId> <waveletId> <state> <version>}, where state is one of
+ * {@code missing}, {@code partial} or {@code imported}, and version is the
+ * last imported version (-1 if missing). Malformed lines are answered as
+ * {@code <line> missing -1}, blank lines are ignored. Lines are answered as
+ * they are read, so arbitrarily large batches are not buffered.
+ *
+ * @author A. Kaplanov
+ */
+@SuppressWarnings("serial")
+@Singleton
+public class ImportStatusServlet extends HttpServlet {
+
+    public static final String MISSING = "missing";
+    public static final String PARTIAL = "partial";
+    public static final String IMPORTED = "imported";
+
+    private final ImportIndex importIndex;
+
+    @Inject
+    private ImportStatusServlet(ImportIndex importIndex) {
+        this.importIndex = importIndex;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        BufferedReader reader;
+        try {
+            reader = RequestBodies.getReader(request);
+        } catch (RequestBodies.UnsupportedContentEncodingException ex) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, ex.getMessage());
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain; charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            StringTokenizer st = new StringTokenizer(line, " ");
+            if (st.countTokens() == 0) {
+                continue;
+            }
+            if (st.countTokens() != 2) {
+                // Keeps the answers in the order of the requested lines.
+                writer.print(line.trim() + " " + MISSING + " -1\n");
+                continue;
+            }
+            String wave_id = st.nextToken();
+            String wavelet_id = st.nextToken();
+            ImportIndex.Entry entry = null;
+            try {
+                entry = importIndex.getEntry(WaveletName.of(WaveId.deserialise(wave_id), WaveletId.deserialise(wavelet_id)));
+            } catch (IllegalArgumentException ex) {
+                // Reported as missing, the import request itself will fail.
+            }
+            if (entry == null) {
+                writer.print(wave_id + " " + wavelet_id + " " + MISSING + " -1\n");
+            } else {
+                writer.print(wave_id + " " + wavelet_id + " " + (entry.isComplete() ? IMPORTED : PARTIAL)
+                        + " " + entry.getVersion().getVersion() + "\n");
+            }
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,345 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.frontend.CommittedWaveletSnapshot;
+import org.waveprotocol.box.server.waveserver.WaveServerException;
+import org.waveprotocol.box.server.waveserver.WaveletProvider;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation.MutateDocument;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.document.operation.algorithm.DocOpCollector;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpUtil;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.logging.Log;
+
+/**
+ * Checks that exported wavelets are imported faithfully, by comparing a
+ * fingerprint of each exported wavelet with the wavelet in the wave server.
+ *
+ * The fingerprint is the final version, the participants and a hash of the
+ * content of each document. The exported history is replayed with the same
+ * domain and attachment url rewrites as {@link WaveletImporter} applies, so
+ * an identical import gives an identical fingerprint. Wavelets imported from
+ * snapshots have shorter histories and differ in version.
+ *
+ * Export files are verified in parallel by the number of threads given by
+ * the {@code wave.import.verify.threads} system property, default the number
+ * of processors.
+ *
+ * @author A. Kaplanov
+ */
+@Singleton
+public class ImportVerifier {
+
+    private static final Log LOG = Log.get(ImportVerifier.class);
+
+    public static final String THREADS_PROPERTY = "wave.import.verify.threads";
+
+    private final WaveletProvider waveletProvider;
+    private final WaveletImporter waveletImporter;
+    private final int threads;
+
+    @Inject
+    public ImportVerifier(WaveletProvider waveletProvider, WaveletImporter waveletImporter) {
+        this.waveletProvider = waveletProvider;
+        this.waveletImporter = waveletImporter;
+        this.threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Counts of a verification. */
+    public static final class Summary {
+
+        private int verified;
+        private int mismatched;
+        private int failed;
+
+        /** Number of wavelets compared, including mismatched ones. */
+        public int getVerified() {
+            return verified;
+        }
+
+        /** Number of wavelets which differ or are missing. */
+        public int getMismatched() {
+            return mismatched;
+        }
+
+        /** Number of wavelets which could not be read. */
+        public int getFailed() {
+            return failed;
+        }
+    }
+
+    /** Version, participants and document hashes of a wavelet. */
+    static final class Fingerprint {
+
+        private final long version;
+        private final Set<String> participants;
+        private final Map<String, String> documents;
+
+        Fingerprint(long version, Set<String> participants, Map<String, String> documents) {
+            this.version = version;
+            this.participants = participants;
+            this.documents = documents;
+        }
+
+        /** Returns the differences from the actual fingerprint, empty if none. */
+        List<String> compare(Fingerprint actual) {
+            List<String> differences = new ArrayList<String>();
+            if (version != actual.version) {
+                differences.add("version " + version + " " + actual.version);
+            }
+            if (!participants.equals(actual.participants)) {
+                Set<String> missing = new TreeSet<String>(participants);
+                missing.removeAll(actual.participants);
+                Set<String> unexpected = new TreeSet<String>(actual.participants);
+                unexpected.removeAll(participants);
+                differences.add("participants missing=" + missing + " unexpected=" + unexpected);
+            }
+            for (Map.Entry<String, String> document : documents.entrySet()) {
+                String hash = actual.documents.get(document.getKey());
+                if (hash == null) {
+                    differences.add("document " + document.getKey() + " missing");
+                } else if (!hash.equals(document.getValue())) {
+                    differences.add("document " + document.getKey() + " content");
+                }
+            }
+            for (String document : actual.documents.keySet()) {
+                if (!documents.containsKey(document)) {
+                    differences.add("document " + document + " unexpected");
+                }
+            }
+            return differences;
+        }
+    }
+
+    /**
+     * Verifies the wavelets exported to {@code exportDir}, renamed to
+     * {@code domain}, writing a line per difference to the report:
+     * {@code <waveId> <waveletId> <difference>}, where difference is one of
+     * {@code missing}, {@code version <exported> <imported>},
+     * {@code participants ...}, {@code document <id> missing|unexpected|content}
+     * or {@code error <message>}.
+     */
+    public Summary verify(final String domain, File exportDir, Writer report) throws IOException {
+        File[] files = exportDir.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith("#json");
+            }
+        });
+        if (files == null) {
+            throw new IOException("Can't list " + exportDir);
+        }
+        Arrays.sort(files);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("ImportVerifier-%d").setDaemon(true).build());
+        CompletionService<FileResult> completion = new ExecutorCompletionService<FileResult>(executor);
+        Summary summary = new Summary();
+        try {
+            int next = 0;
+            int pending = 0;
+            while (next < files.length || pending != 0) {
+                // Bounded, so that fingerprints don't pile up ahead of the report.
+                while (next < files.length && pending < threads * 4) {
+                    final File file = files[next++];
+                    completion.submit(new Callable<FileResult>() {
+
+                        @Override
+                        public FileResult call() {
+                            return verifyFile(domain, file);
+                        }
+                    });
+                    pending++;
+                }
+                FileResult result;
+                try {
+                    result = completion.take().get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Verification interrupted");
+                } catch (ExecutionException ex) {
+                    throw new IOException(ex.getCause());
+                }
+                pending--;
+                if (result.failed) {
+                    summary.failed++;
+                } else {
+                    summary.verified++;
+                    if (!result.lines.isEmpty()) {
+                        summary.mismatched++;
+                    }
+                }
+                if (!result.lines.isEmpty()) {
+                    for (String line : result.lines) {
+                        report.write(line + "\n");
+                    }
+                    report.flush();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Verified " + summary.verified + " wavelets of " + exportDir + ", "
+                + summary.mismatched + " mismatched, " + summary.failed + " failed");
+        return summary;
+    }
+
+    /** Report lines of an export file. */
+    private static final class FileResult {
+
+        private final List<String> lines = new ArrayList<String>();
+        private boolean failed = false;
+
+        void fail(String prefix, String message) {
+            lines.add(prefix + " error " + message);
+            failed = true;
+        }
+    }
+
+    private FileResult verifyFile(String domain, File file) {
+        FileResult result = new FileResult();
+        StringTokenizer st = new StringTokenizer(file.getName(), "#");
+        String prefix = file.getName();
+        try {
+            WaveletName name = WaveletName.of(
+                    WaveId.of(domain, WaveId.deserialise(st.nextToken()).getId()),
+                    WaveletId.of(domain, WaveletId.deserialise(st.nextToken()).getId()));
+            prefix = name.waveId.serialise() + " " + name.waveletId.serialise();
+            List<ProtocolAppliedWaveletDelta> deltas;
+            Reader reader = new InputStreamReader(new FileInputStream(file), "utf8");
+            try {
+                deltas = WaveletImporter.parseDeltas(reader);
+            } finally {
+                reader.close();
+            }
+            Fingerprint expected = fingerprint(domain, name, deltas);
+            CommittedWaveletSnapshot snapshot = waveletProvider.getSnapshot(name);
+            if (snapshot == null) {
+                result.lines.add(prefix + " missing");
+                return result;
+            }
+            for (String difference : expected.compare(fingerprint(snapshot.snapshot))) {
+                result.lines.add(prefix + " " + difference);
+            }
+        } catch (IOException ex) {
+            result.fail(prefix, ex.getMessage());
+        } catch (WaveServerException ex) {
+            result.fail(prefix, ex.getMessage());
+        } catch (RuntimeException ex) {
+            // Malformed file name or operations which don't compose.
+            result.fail(prefix, ex.toString());
+        }
+        return result;
+    }
+
+    /** Fingerprint of an exported history, as it should be imported. */
+    Fingerprint fingerprint(String domain, final WaveletName name, List<ProtocolAppliedWaveletDelta> deltas)
+            throws IOException {
+        final WaveletImporter.DomainConverter converter = new WaveletImporter.DomainConverter(domain);
+        DeltaRewriter.Rewrites rewrites = new DeltaRewriter.Rewrites() {
+
+            @Override
+            public String convertParticipant(String address) {
+                return converter.convert(address);
+            }
+
+            @Override
+            public MutateDocument rewriteDocument(MutateDocument document) throws IOException {
+                return waveletImporter.rewriteAttachments(document, name, null);
+            }
+        };
+        long version = 0;
+        Set<String> participants = new TreeSet<String>();
+        Map<String, DocOpCollector> documents = new TreeMap<String, DocOpCollector>();
+        for (ProtocolAppliedWaveletDelta applied_delta : deltas) {
+            ProtocolWaveletDelta delta = ProtocolWaveletDelta.parseFrom(DeltaRewriter.rewrite(
+                    applied_delta.getSignedOriginalDelta().getDelta().toByteArray(), null, rewrites));
+            for (ProtocolWaveletOperation op : delta.getOperationList()) {
+                if (op.hasAddParticipant()) {
+                    participants.add(op.getAddParticipant());
+                } else if (op.hasRemoveParticipant()) {
+                    participants.remove(op.getRemoveParticipant());
+                } else if (op.hasMutateDocument()) {
+                    String document_id = op.getMutateDocument().getDocumentId();
+                    DocOpCollector collector = documents.get(document_id);
+                    if (collector == null) {
+                        collector = new DocOpCollector();
+                        documents.put(document_id, collector);
+                    }
+                    collector.add(CoreWaveletOperationSerializer.deserialize(
+                            op.getMutateDocument().getDocumentOperation()));
+                }
+            }
+            version = delta.getHashedVersion().getVersion() + delta.getOperationCount();
+        }
+        Map<String, String> hashes = new TreeMap<String, String>();
+        for (Map.Entry<String, DocOpCollector> document : documents.entrySet()) {
+            hashes.put(document.getKey(), hash(DocOpUtil.asInitialization(document.getValue().composeAll())));
+        }
+        return new Fingerprint(version, participants, hashes);
+    }
+
+    /** Fingerprint of a wavelet in the wave server. */
+    static Fingerprint fingerprint(ReadableWaveletData wavelet) {
+        Set<String> participants = new TreeSet<String>();
+        for (ParticipantId participant : wavelet.getParticipants()) {
+            participants.add(participant.getAddress());
+        }
+        Map<String, String> hashes = new TreeMap<String, String>();
+        for (String document_id : wavelet.getDocumentIds()) {
+            hashes.put(document_id, hash(wavelet.getDocument(document_id).getContent().asOperation()));
+        }
+        return new Fingerprint(wavelet.getVersion(), participants, hashes);
+    }
+
+    /** SHA-1 of the normalized XML form of a document. */
+    private static String hash(DocInitialization content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(DocOpUtil.toXmlString(DocOpUtil.normalize(content)).getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Semaphore;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Verifies imported wavelets against an export directory on the wave server
+ * machine, see {@link ImportVerifier}.
+ *
+ * Takes the {@code domain} header as {@link ImportServlet} does and the
+ * {@code exportDir} header with the path of the directory, relative to the
+ * directory given by the {@code wave.import.verify.root} system property.
+ * Directories outside it are refused, and without it verification is off.
+ * Answers the report as it is written, followed by the line
+ * {@code verified <count> mismatched <count> failed <count>}.
+ *
+ * One verification runs at a time, others are answered 503. It stops if
+ * the client goes away.
+ *
+ * @author A. Kaplanov
+ */
+@SuppressWarnings("serial")
+@Singleton
+public class ImportVerifyServlet extends HttpServlet {
+
+    public static final String ROOT_PROPERTY = "wave.import.verify.root";
+
+    private final ImportVerifier importVerifier;
+    private final Semaphore running = new Semaphore(1);
+
+    @Inject
+    private ImportVerifyServlet(ImportVerifier importVerifier) {
+        this.importVerifier = importVerifier;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String domain = request.getHeader("domain");
+        String export_dir = request.getHeader("exportDir");
+        if (domain == null || export_dir == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "domain and exportDir headers are required");
+            return;
+        }
+        String root_path = System.getProperty(ROOT_PROPERTY);
+        if (root_path == null) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Verification is off, " + ROOT_PROPERTY + " is not set");
+            return;
+        }
+        File root = new File(root_path).getCanonicalFile();
+        File dir = new File(root, export_dir).getCanonicalFile();
+        if (!isWithin(dir, root)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, export_dir + " is outside " + ROOT_PROPERTY);
+            return;
+        }
+        if (!dir.isDirectory()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No directory " + export_dir);
+            return;
+        }
+        if (!running.tryAcquire()) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "A verification is running");
+            return;
+        }
+        try {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/plain; charset=UTF-8");
+            // Not a PrintWriter, which would hide a closed connection.
+            Writer writer = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+            ImportVerifier.Summary summary = importVerifier.verify(domain, dir, writer);
+            writer.write("verified " + summary.getVerified() + " mismatched " + summary.getMismatched()
+                    + " failed " + summary.getFailed() + "\n");
+            writer.flush();
+        } finally {
+            running.release();
+        }
+    }
+
+    private static boolean isWithin(File file, File dir) {
+        for (File parent = file; parent != null; parent = parent.getParentFile()) {
+            if (parent.equals(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,69 @@
+package org.waveprotocol.box.server.imp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads import request bodies, decompressing them on the fly according to
+ * their Content-Encoding.
+ *
+ * @author A. Kaplanov
+ */
+final class RequestBodies {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private RequestBodies() {
+    }
+
+    /**
+     * Returns the body of the request as text. Supports gzip and deflate
+     * content encodings.
+     *
+     * @throws UnsupportedContentEncodingException for other encodings
+     */
+    static BufferedReader getReader(HttpServletRequest request) throws IOException {
+        String encoding = request.getHeader("Content-Encoding");
+        if (encoding == null || encoding.equalsIgnoreCase("identity")) {
+            return request.getReader();
+        }
+        String charset = request.getCharacterEncoding();
+        return new BufferedReader(new InputStreamReader(getInputStream(request),
+                charset != null ? charset : "UTF-8"), BUFFER_SIZE);
+    }
+
+    /**
+     * Returns the decompressed body of the request. Supports gzip and
+     * deflate content encodings.
+     *
+     * @throws UnsupportedContentEncodingException for other encodings
+     */
+    static InputStream getInputStream(HttpServletRequest request) throws IOException {
+        String encoding = request.getHeader("Content-Encoding");
+        if (encoding == null || encoding.equalsIgnoreCase("identity")) {
+            return new BufferedInputStream(request.getInputStream(), BUFFER_SIZE);
+        }
+        if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+            return new GZIPInputStream(request.getInputStream(), BUFFER_SIZE);
+        } else if (encoding.equalsIgnoreCase("deflate")) {
+            return new InflaterInputStream(request.getInputStream());
+        } else {
+            throw new UnsupportedContentEncodingException(encoding);
+        }
+    }
+
+    /** Thrown for request bodies in an unknown content encoding. */
+    @SuppressWarnings("serial")
+    static class UnsupportedContentEncodingException extends IOException {
+
+        UnsupportedContentEncodingException(String encoding) {
+            super("Unsupported Content-Encoding: " + encoding);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.walkaround.proto.Diff.WaveletDiffSnapshot;
+import com.google.walkaround.proto.GoogleImport.GoogleDocument;
+import com.google.walkaround.proto.GoogleImport.GoogleWavelet;
+import com.google.walkaround.proto.Walkaround.WalkaroundWaveletSnapshot;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+/**
+ * Imports a wavelet from its final snapshot instead of its history, see
+ * {@link WaveletImporter#importSnapshot}.
+ *
+ * Takes the {@code domain}, {@code waveId} and {@code waveletId} headers as
+ * {@link ImportServlet} does, and the {@code format} header telling the body:
+ * <ul>
+ * <li>{@code google} - a length delimited {@link GoogleWavelet} followed by
+ * length delimited {@link GoogleDocument}s;</li>
+ * <li>{@code walkaround} - a {@link WalkaroundWaveletSnapshot};</li>
+ * <li>{@code diff} - a {@link WaveletDiffSnapshot}.</li>
+ * </ul>
+ *
+ * @author A. Kaplanov
+ */
+@SuppressWarnings("serial")
+@Singleton
+public class SnapshotImportServlet extends HttpServlet {
+
+    public static final String FORMAT_GOOGLE = "google";
+    public static final String FORMAT_WALKAROUND = "walkaround";
+    public static final String FORMAT_DIFF = "diff";
+
+    private final WaveletImporter waveletImporter;
+
+    @Inject
+    private SnapshotImportServlet(WaveletImporter waveletImporter) {
+        this.waveletImporter = waveletImporter;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String domain = request.getHeader("domain");
+        String format = request.getHeader("format");
+        WaveletName name;
+        try {
+            name = WaveletName.of(WaveId.deserialise(request.getHeader("waveId")),
+                    WaveletId.deserialise(request.getHeader("waveletId")));
+        } catch (IllegalArgumentException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+        InputStream in;
+        try {
+            in = RequestBodies.getInputStream(request);
+        } catch (RequestBodies.UnsupportedContentEncodingException ex) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, ex.getMessage());
+            return;
+        }
+        WaveletSnapshot snapshot;
+        try {
+            if (FORMAT_GOOGLE.equals(format)) {
+                GoogleWavelet wavelet = GoogleWavelet.parseDelimitedFrom(in);
+                if (wavelet == null) {
+                    throw new InvalidProtocolBufferException("No wavelet");
+                }
+                List<GoogleDocument> documents = new ArrayList<GoogleDocument>();
+                for (GoogleDocument document = GoogleDocument.parseDelimitedFrom(in); document != null;
+                        document = GoogleDocument.parseDelimitedFrom(in)) {
+                    documents.add(document);
+                }
+                snapshot = WaveletSnapshot.of(wavelet, documents);
+            } else if (FORMAT_WALKAROUND.equals(format)) {
+                snapshot = WaveletSnapshot.of(WalkaroundWaveletSnapshot.parseFrom(in));
+            } else if (FORMAT_DIFF.equals(format)) {
+                snapshot = WaveletSnapshot.of(WaveletDiffSnapshot.parseFrom(in));
+            } else {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown snapshot format: " + format);
+                return;
+            }
+        } catch (InvalidProtocolBufferException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed snapshot: " + ex.getMessage());
+            return;
+        }
+        boolean imported = waveletImporter.importSnapshot(domain, name, snapshot);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getOutputStream().write((imported?"imported":"skipped").getBytes());
+    }
+}
@@ -0,0 +1,38 @@
+package org.waveprotocol.box.server.imp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Fetches attachments from the Google Wave attachment server. Connecting and
+ * each read wait at most the timeout, so a stalled server fails the fetch
+ * instead of holding a fetch thread.
+ *
+ * @author A. Kaplanov
+ */
+public class UrlAttachmentSource implements AttachmentSource {
+
+    public static final String GOOGLE_WAVE_ATTACHMENT_URL = "https://wave.googleusercontent.com/wave";
+
+    private final String baseUrl;
+    private final int timeoutMillis;
+
+    public UrlAttachmentSource(int timeoutMillis) {
+        this(GOOGLE_WAVE_ATTACHMENT_URL, timeoutMillis);
+    }
+
+    public UrlAttachmentSource(String baseUrl, int timeoutMillis) {
+        this.baseUrl = baseUrl;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public InputStream open(String attachmentId, String path) throws IOException {
+        URLConnection connection = new URL(baseUrl + path).openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        return connection.getInputStream();
+    }
+}
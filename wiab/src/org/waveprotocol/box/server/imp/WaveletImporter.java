@@ -0,0 +1,612 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.gxp.org.apache.xerces.impl.dv.util.Base64;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.protobuf.ByteString;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.waveprotocol.box.server.frontend.CommittedWaveletSnapshot;
+import org.waveprotocol.box.server.waveserver.WaveServerException;
+import org.waveprotocol.box.server.waveserver.WaveletProvider;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation.Component;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation.MutateDocument;
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.version.HashedVersionFactory;
+import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
+import org.waveprotocol.wave.model.waveref.WaveRef;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
+import org.waveprotocol.wave.util.escapers.jvm.JavaWaverefEncoder;
+import org.waveprotocol.wave.util.logging.Log;
+
+/**
+ * Imports exported wavelet histories into the wave server: renames domains of
+ * participants, chains history hashes, submits deltas and records progress in
+ * the {@link ImportIndex}.
+ *
+ * Thread-safe. Different wavelets are imported concurrently, imports of the
+ * same wavelet are serialized.
+ *
+ * Consecutive deltas of the same author applied within the number of
+ * milliseconds given by the {@code wave.import.compose.window} system
+ * property are submitted as a single delta. Disabled by default.
+ *
+ * A dry run goes through all of this but submitting, and profiles the
+ * stages, see {@link #dryRun}.
+ *
+ * @author A. Kaplanov
+ */
+@Singleton
+public class WaveletImporter {
+
+    private static final Log LOG = Log.get(WaveletImporter.class);
+
+    public static final String COMPOSE_WINDOW_PROPERTY = "wave.import.compose.window";
+    private static final int MAX_COMPOSED_OPERATIONS = 1000;
+    // Chains history hashes of dry runs as the wave server does.
+    private static final HashedVersionFactory HASH_FACTORY =
+            new HashedVersionFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()));
+
+    private final WaveletProvider waveletProvider;
+    private final ImportIndex importIndex;
+    private final AttachmentImporter attachmentImporter;
+    private final Interner<WaveletName> locks = Interners.newWeakInterner();
+    private final long composeWindow;
+
+    @Inject
+    public WaveletImporter(WaveletProvider waveletProvider, ImportIndex importIndex,
+            AttachmentImporter attachmentImporter) {
+        this.waveletProvider = waveletProvider;
+        this.importIndex = importIndex;
+        this.attachmentImporter = attachmentImporter;
+        this.composeWindow = Long.getLong(COMPOSE_WINDOW_PROPERTY, 0);
+    }
+
+    /**
+     * Renames domains of participants to the wave server domain. Anonymous
+     * {@code @a.gwave.com} participants become the last converted one, so
+     * the result depends on the order of calls. Not thread-safe.
+     */
+    static final class DomainConverter {
+
+        private final String domain;
+        private String lastParticipant = null;
+
+        DomainConverter(String domain) {
+            this.domain = domain;
+        }
+
+        String convert(String participant) {
+            int index = participant.indexOf('@');
+            if (index != -1) {
+                if (participant.endsWith("@a.gwave.com") && lastParticipant != null)
+                    participant = lastParticipant;
+                else
+                    participant = participant.substring(0, index+1) + domain;
+            }
+            lastParticipant = participant;
+            return participant;
+        }
+    }
+
+    /** State of a single wavelet import. */
+    private static class WaveletImport {
+
+        private final WaveletName name;
+        private final DomainConverter domainConverter;
+        // Deltas of a dry run are not submitted, and attachments not fetched.
+        private final boolean dryRun;
+        private final ImportProfile.Timer timer;
+        // Version imported by earlier requests
+        private HashedVersion importedVersion = null;
+        private HashedVersion hashedVersion = null;
+        private boolean submitted = false;
+        private StringWriter error = new StringWriter();
+        // Applied deltas are scanned for attachments too
+        private boolean retryAttachments = false;
+        // Attachments being imported in background
+        private final List<Future<Boolean>> attachments = new ArrayList<Future<Boolean>>();
+
+        WaveletImport(WaveletName name, String domain) {
+            this(name, domain, false, ImportProfile.Timer.NONE);
+        }
+
+        WaveletImport(WaveletName name, String domain, boolean dryRun, ImportProfile.Timer timer) {
+            this.name = name;
+            this.domainConverter = new DomainConverter(domain);
+            this.dryRun = dryRun;
+            this.timer = timer;
+        }
+
+        String convertDomains(String participant) {
+            return domainConverter.convert(participant);
+        }
+    }
+
+    /**
+     * Parses deltas of a wavelet exported by WaveExport.
+     */
+    public static List<ProtocolAppliedWaveletDelta> parseDeltas(Reader reader) throws IOException {
+        try {
+            return parseDeltas(new JSONObject(readToString(reader)));
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Parses deltas of a wavelet exported by WaveExport.
+     */
+    public static List<ProtocolAppliedWaveletDelta> parseDeltas(JSONObject exp) throws IOException {
+        try {
+            JSONArray raw_deltas = exp.getJSONObject("data").getJSONArray("rawDeltas");
+            List<ProtocolAppliedWaveletDelta> deltas = new LinkedList<ProtocolAppliedWaveletDelta>();
+            for (int i = 0; i < raw_deltas.length(); i++) {
+                deltas.add(ProtocolAppliedWaveletDelta.parseFrom(Base64.decode(raw_deltas.getString(i))));
+            }
+            return deltas;
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Imports deltas of a wavelet, renaming participant domains to
+     * {@code domain}. Deltas imported by earlier calls are skipped. If
+     * attachments can't be imported, the wavelet is left partial, and the
+     * next call fetches the attachments of the skipped deltas again.
+     *
+     * @return false if all the deltas were already imported
+     * @throws IOException if the wave server rejects a delta, or attachments
+     *         are not imported
+     */
+    public boolean importWavelet(String domain, WaveletName name, List<ProtocolAppliedWaveletDelta> deltas)
+            throws IOException {
+        synchronized (locks.intern(name)) {
+            WaveletImport imp = new WaveletImport(name, domain);
+            ImportIndex.Entry entry = importIndex.getEntry(name);
+            // Version up to which the wavelet was imported by earlier requests.
+            imp.importedVersion = entry != null ? entry.getVersion() : null;
+            imp.hashedVersion = imp.importedVersion;
+            // Attachments of a partial import may have failed, they are fetched again.
+            imp.retryAttachments = entry != null && !entry.isComplete();
+            importDeltas(imp, deltas);
+            int failed = waitForAttachments(imp);
+            if (failed != 0) {
+                // Left partial, so that the next import fetches them again.
+                if (imp.error.getBuffer().length() != 0) {
+                    imp.error.write("\n");
+                }
+                imp.error.write(failed + " of " + imp.attachments.size() + " attachments are not imported");
+            }
+            if (imp.hashedVersion != null) {
+                importIndex.setImportedVersion(name, imp.hashedVersion, imp.error.getBuffer().length() == 0);
+            }
+            if (imp.error.getBuffer().length() != 0) {
+                throw new IOException(imp.error.getBuffer().toString());
+            }
+            return imp.submitted;
+        }
+    }
+
+    /**
+     * Runs {@link #importWavelet} on an export without submitting deltas:
+     * the body is read and parsed, and the deltas are rewritten, composed
+     * and hash chained as the wave server would. Neither the wave server nor
+     * the index is used, attachments are not fetched. The stages are timed
+     * into the profile.
+     */
+    public void dryRun(String domain, WaveletName name, Reader reader, ImportProfile profile) throws IOException {
+        ImportProfile.Timer timer = profile.startWavelet(name);
+        boolean ok = false;
+        try {
+            String text = readToString(reader);
+            timer.mark(ImportProfile.Stage.READ, text.length());
+            List<ProtocolAppliedWaveletDelta> deltas;
+            try {
+                JSONArray raw_deltas = new JSONObject(text).getJSONObject("data").getJSONArray("rawDeltas");
+                timer.mark(ImportProfile.Stage.JSON, text.length());
+                deltas = new ArrayList<ProtocolAppliedWaveletDelta>(raw_deltas.length());
+                for (int i = 0; i < raw_deltas.length(); i++) {
+                    String raw_delta = raw_deltas.getString(i);
+                    byte[] bytes = Base64.decode(raw_delta);
+                    timer.mark(ImportProfile.Stage.BASE64, raw_delta.length());
+                    deltas.add(ProtocolAppliedWaveletDelta.parseFrom(bytes));
+                    timer.mark(ImportProfile.Stage.PROTOBUF, bytes.length);
+                    timer.delta(bytes.length);
+                }
+            } catch (JSONException ex) {
+                throw new IOException(ex);
+            }
+            WaveletImport imp = new WaveletImport(name, domain, true, timer);
+            importDeltas(imp, deltas);
+            if (imp.error.getBuffer().length() != 0) {
+                throw new IOException(imp.error.getBuffer().toString());
+            }
+            ok = true;
+        } finally {
+            timer.finish(ok);
+        }
+    }
+
+    /**
+     * Rewrites and submits the deltas after the version of the import,
+     * composing runs of them. Stops at the first rejected delta, leaving the
+     * error in the import.
+     */
+    private void importDeltas(final WaveletImport imp, List<ProtocolAppliedWaveletDelta> deltas) throws IOException {
+        DeltaRewriter.Rewrites rewrites = new DeltaRewriter.Rewrites() {
+
+            @Override
+            public String convertParticipant(String address) {
+                return imp.convertDomains(address);
+            }
+
+            @Override
+            public MutateDocument rewriteDocument(MutateDocument document) throws IOException {
+                return rewriteAttachments(document, imp.name, imp.dryRun ? null : imp.attachments);
+            }
+        };
+        // Consecutive deltas composed into the next submitted one.
+        List<byte[]> run = new ArrayList<byte[]>();
+        DeltaRewriter.Summary run_start = null;
+        long run_start_time = 0;
+        int run_operations = 0;
+        // Apply deltas to wave
+        for (ProtocolAppliedWaveletDelta applied_delta : deltas) {
+            byte[] delta = applied_delta.getSignedOriginalDelta().getDelta().toByteArray();
+            DeltaRewriter.Summary summary = DeltaRewriter.summarize(delta);
+            imp.timer.mark(ImportProfile.Stage.REWRITE, delta.length);
+            long time = applied_delta.getApplicationTimestamp();
+            if (!run.isEmpty()) {
+                if (canCompose(imp, run_start, run_start_time, run_operations, summary, time)) {
+                    run.add(delta);
+                    run_operations += summary.getOperationCount();
+                    continue;
+                }
+                boolean submitted = submitRun(imp, run, run_start, rewrites);
+                run.clear();
+                if (!submitted) {
+                    break;
+                }
+            }
+            // Already applied, resume from the first missing version.
+            if (imp.hashedVersion != null && summary.getVersion() < imp.hashedVersion.getVersion()) {
+                // Participants are still converted, the conversion depends on earlier ones.
+                if (imp.retryAttachments) {
+                    DeltaRewriter.scanDocuments(delta, rewrites);
+                } else {
+                    DeltaRewriter.scanParticipants(delta, rewrites);
+                }
+                continue;
+            }
+            run.add(delta);
+            run_start = summary;
+            run_start_time = time;
+            run_operations = summary.getOperationCount();
+        }
+        if (!run.isEmpty() && imp.error.getBuffer().length() == 0) {
+            submitRun(imp, run, run_start, rewrites);
+        }
+    }
+
+    /**
+     * Imports the final state of a wavelet instead of its history: a delta
+     * adding the participants, then a delta per document. Renames participant
+     * domains to {@code domain} as {@link #importWavelet} does. The imported
+     * wavelet gets the versions of this short history, not the original ones.
+     *
+     * @return false if the wavelet was already imported
+     * @throws IOException if the wavelet is partially imported, or the wave
+     *         server rejects a delta
+     */
+    public boolean importSnapshot(String domain, WaveletName name, WaveletSnapshot snapshot) throws IOException {
+        synchronized (locks.intern(name)) {
+            ImportIndex.Entry entry = importIndex.getEntry(name);
+            if (entry != null) {
+                if (entry.isComplete()) {
+                    return false;
+                }
+                throw new IOException("Wavelet " + name + " is partially imported");
+            }
+            WaveletImport imp = new WaveletImport(name, domain);
+            String creator = imp.convertDomains(snapshot.getCreator());
+            ProtocolWaveletDelta.Builder creation = ProtocolWaveletDelta.newBuilder()
+                    .setHashedVersion(getHashedVersion(imp, 0))
+                    .setAuthor(creator);
+            for (String participant : snapshot.getParticipants()) {
+                creation.addOperation(ProtocolWaveletOperation.newBuilder()
+                        .setAddParticipant(imp.convertDomains(participant)));
+            }
+            if (creation.getOperationCount() == 0) {
+                // Wavelet without participants, the creator keeps it accessible.
+                creation.addOperation(ProtocolWaveletOperation.newBuilder().setAddParticipant(creator));
+            }
+            submitDelta(imp, creation.build());
+            if (imp.error.getBuffer().length() != 0) {
+                HashedVersion existing_version = getExistingVersion(name);
+                if (existing_version != null) {
+                    LOG.info("Wavelet " + name + " exists at version " + existing_version.getVersion());
+                    importIndex.setImportedVersion(name, existing_version, true);
+                    return false;
+                }
+                throw new IOException(imp.error.getBuffer().toString());
+            }
+            for (WaveletSnapshot.Document document : snapshot.getDocuments()) {
+                MutateDocument mutate = MutateDocument.newBuilder()
+                        .setDocumentId(document.getDocumentId())
+                        .setDocumentOperation(document.getContent())
+                        .build();
+                MutateDocument new_mutate = rewriteAttachments(mutate, name, imp.attachments);
+                ProtocolWaveletDelta delta = ProtocolWaveletDelta.newBuilder()
+                        .setHashedVersion(getHashedVersion(imp, imp.hashedVersion.getVersion()))
+                        .setAuthor(document.getAuthor() != null ? imp.convertDomains(document.getAuthor()) : creator)
+                        .addOperation(ProtocolWaveletOperation.newBuilder()
+                                .setMutateDocument(new_mutate != null ? new_mutate : mutate))
+                        .build();
+                submitDelta(imp, delta);
+                if (imp.error.getBuffer().length() != 0) {
+                    break;
+                }
+            }
+            int failed = waitForAttachments(imp);
+            if (failed != 0) {
+                // A snapshot import is not resumed, so these are not retried.
+                LOG.warning(failed + " of " + imp.attachments.size() + " attachments of " + name + " are not imported");
+            }
+            importIndex.setImportedVersion(name, imp.hashedVersion, imp.error.getBuffer().length() == 0);
+            if (imp.error.getBuffer().length() != 0) {
+                throw new IOException(imp.error.getBuffer().toString());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Whether a delta can be composed into the run of deltas started by
+     * {@code start}: same author, contiguous versions, and within the compose
+     * window. The first submit of a wavelet missing in the index is never
+     * composed, see {@link #submitRun}.
+     */
+    private boolean canCompose(WaveletImport imp, DeltaRewriter.Summary start, long startTime, int operations,
+            DeltaRewriter.Summary delta, long time) {
+        return composeWindow > 0
+                && (imp.submitted || imp.importedVersion != null)
+                && delta.getAuthor().equals(start.getAuthor())
+                && delta.getVersion() == start.getVersion() + operations
+                && time - startTime <= composeWindow
+                && operations + delta.getOperationCount() <= MAX_COMPOSED_OPERATIONS;
+    }
+
+    /**
+     * Rewrites a run of consecutive deltas and submits them as one delta with
+     * the operations of all of them, which gives the same wavelet state and
+     * version. If the first submit of a wavelet missing in the index fails,
+     * checks whether the wavelet was imported before the index was
+     * introduced and continues after it.
+     *
+     * @return false if the import has to stop
+     */
+    private boolean submitRun(WaveletImport imp, List<byte[]> run, DeltaRewriter.Summary start,
+            DeltaRewriter.Rewrites rewrites) throws IOException {
+        ProtocolHashedVersion hashed_version = getHashedVersion(imp, start.getVersion());
+        imp.timer.mark(ImportProfile.Stage.HASH, 0);
+        ProtocolWaveletDelta delta = ProtocolWaveletDelta.parseFrom(
+                DeltaRewriter.rewrite(run.get(0), hashed_version, rewrites));
+        if (run.size() > 1) {
+            ProtocolWaveletDelta.Builder composed = ProtocolWaveletDelta.newBuilder(delta);
+            for (int i = 1; i < run.size(); i++) {
+                composed.addAllOperation(ProtocolWaveletDelta.parseFrom(
+                        DeltaRewriter.rewrite(run.get(i), null, rewrites)).getOperationList());
+            }
+            delta = composed.build();
+        }
+        imp.timer.mark(ImportProfile.Stage.REWRITE, 0);
+        submitDelta(imp, delta);
+        if (imp.error.getBuffer().length() != 0) {
+            if (!imp.submitted && imp.importedVersion == null) {
+                // Possibly imported before the index was introduced.
+                HashedVersion existing_version = getExistingVersion(imp.name);
+                if (existing_version != null) {
+                    LOG.info("Wavelet " + imp.name + " exists at version " + existing_version.getVersion());
+                    imp.importedVersion = existing_version;
+                    imp.hashedVersion = existing_version;
+                    importIndex.setImportedVersion(imp.name, existing_version);
+                    imp.error = new StringWriter();
+                    return true;
+                }
+            }
+            return false;
+        }
+        imp.submitted = true;
+        return true;
+    }
+
+    /**
+     * Gets the version a delta is submitted at, chained to the history
+     * imported so far.
+     */
+    private static ProtocolHashedVersion getHashedVersion(WaveletImport imp, long version) {
+        WaveletName name = imp.name;
+        if (version == 0) {
+            String hash = "wave://" + name.waveId.getDomain() + "/" + name.waveId.getId() + "/" + name.waveletId.getId();
+            return ProtocolHashedVersion.newBuilder().setVersion(0).setHistoryHash(ByteString.copyFromUtf8(hash)).build();
+        }
+        return ProtocolHashedVersion.newBuilder().setVersion(imp.hashedVersion.getVersion()).setHistoryHash(ByteString.copyFrom(imp.hashedVersion.getHistoryHash())).build();
+    }
+
+    private void submitDelta(final WaveletImport imp, ProtocolWaveletDelta delta) {
+        if (imp.dryRun) {
+            chainHash(imp, delta);
+            return;
+        }
+        waveletProvider.submitRequest(imp.name, delta, new WaveletProvider.SubmitRequestListener() {
+
+            @Override
+            public void onSuccess(int operationsApplied, HashedVersion hashedVersionAfterApplication, long applicationTimestamp) {
+                imp.hashedVersion = hashedVersionAfterApplication;
+            }
+
+            @Override
+            public void onFailure(String errorMessage) {
+                imp.error.write(errorMessage);
+            }
+        });
+    }
+
+    /**
+     * Takes the version after a delta of a dry run, hashing the applied
+     * delta the wave server would store.
+     */
+    private static void chainHash(WaveletImport imp, ProtocolWaveletDelta delta) {
+        byte[] applied_delta = ProtocolAppliedWaveletDelta.newBuilder()
+                .setSignedOriginalDelta(ProtocolSignedDelta.newBuilder().setDelta(delta.toByteString()))
+                .setOperationsApplied(delta.getOperationCount())
+                .setApplicationTimestamp(System.currentTimeMillis())
+                .build().toByteArray();
+        HashedVersion applied_at = HashedVersion.of(delta.getHashedVersion().getVersion(),
+                delta.getHashedVersion().getHistoryHash().toByteArray());
+        imp.hashedVersion = HASH_FACTORY.create(applied_delta, applied_at, delta.getOperationCount());
+        imp.timer.mark(ImportProfile.Stage.HASH, applied_delta.length);
+    }
+
+    /**
+     * Points attachment urls of a document operation to this server and
+     * schedules import of the attachments, unless {@code attachments} is
+     * null. Returns null if the operation refers to no attachments.
+     */
+    MutateDocument rewriteAttachments(MutateDocument doc, WaveletName name,
+            List<Future<Boolean>> attachments) throws IOException {
+        ProtocolDocumentOperation doc_op = doc.getDocumentOperation();
+        ProtocolDocumentOperation.Builder new_doc_op = null;
+        for (int j = 0; j < doc_op.getComponentCount(); j++) {
+            Component component = doc_op.getComponent(j);
+            if (!component.hasElementStart()) {
+                continue;
+            }
+            Component.ElementStart element = component.getElementStart();
+            for (int k = 0; k + 1 < element.getAttributeCount(); k++) {
+                Component.KeyValuePair pair = element.getAttribute(k);
+                if ("key".equals(pair.getKey()) && "attachment_url".equals(pair.getValue())) {
+                    Component.KeyValuePair value_pair = element.getAttribute(k + 1);
+                    String attachment_id = getAttachmentId(value_pair.getValue());
+                    if ("value".equals(value_pair.getKey()) && attachment_id != null) {
+                        if (attachments != null) {
+                            attachments.add(attachmentImporter.importAttachment(name, attachment_id, value_pair.getValue()));
+                        }
+                        if (new_doc_op == null) {
+                            new_doc_op = ProtocolDocumentOperation.newBuilder(doc_op);
+                        }
+                        Component.KeyValuePair new_value_pair = Component.KeyValuePair.newBuilder(value_pair)
+                                .setValue(getAttachmentUrl(name, attachment_id, value_pair.getValue())).build();
+                        new_doc_op.setComponent(j, Component.newBuilder(component).setElementStart(
+                                Component.ElementStart.newBuilder(element).setAttribute(k + 1, new_value_pair)));
+                    }
+                    break;
+                }
+            }
+        }
+        if (new_doc_op == null) {
+            return null;
+        }
+        return MutateDocument.newBuilder(doc).setDocumentOperation(new_doc_op).build();
+    }
+
+    /** Gets attachment id from the key parameter of an exported attachment url. */
+    private static String getAttachmentId(String path) {
+        int index = path.indexOf('?');
+        if (index == -1) {
+            return null;
+        }
+        for (String param : path.substring(index + 1).split("&")) {
+            if (param.startsWith("key=")) {
+                return param.substring("key=".length());
+            }
+        }
+        return null;
+    }
+
+    private static String getAttachmentUrl(WaveletName name, String attachmentId, String path) throws IOException {
+        int index = path.indexOf('?');
+        String file_name = path.substring(path.lastIndexOf('/', index) + 1, index);
+        WaveRef wave_ref = WaveRef.of(name.waveId, name.waveletId);
+        return "/attachment/" + attachmentId
+                + "?fileName=" + URLEncoder.encode(file_name, "UTF-8")
+                + "&waveRef=" + URLEncoder.encode(JavaWaverefEncoder.encodeToUriPathSegment(wave_ref), "UTF-8");
+    }
+
+    /**
+     * Waits for the attachments of the import, at most the wait time of the
+     * attachment importer in all, returns the number of those which are not
+     * imported.
+     */
+    private int waitForAttachments(WaveletImport imp) {
+        if (imp.attachments.isEmpty()) {
+            return 0;
+        }
+        long deadline = System.currentTimeMillis() + attachmentImporter.getWaitMillis();
+        int imported = 0;
+        for (Future<Boolean> attachment : imp.attachments) {
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                if (Boolean.TRUE.equals(attachment.get(wait, TimeUnit.MILLISECONDS))) {
+                    imported++;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                // Logged by the attachment importer
+            } catch (TimeoutException ex) {
+                // Still fetched in background, the next import finds it in the store.
+            }
+        }
+        return imp.attachments.size() - imported;
+    }
+
+    private HashedVersion getExistingVersion(WaveletName name) {
+        try {
+            CommittedWaveletSnapshot snapshot = waveletProvider.getSnapshot(name);
+            return snapshot != null ? snapshot.snapshot.getHashedVersion() : null;
+        } catch (WaveServerException ex) {
+            LOG.severe("Can't get snapshot of " + name, ex);
+            return null;
+        }
+    }
+
+    private static String readToString(Reader reader) throws FileNotFoundException, IOException {
+        StringBuilder sb = new StringBuilder();
+        char buf[] = new char[1000];
+        for (;;) {
+            int ret = reader.read(buf, 0, buf.length);
+            if (ret == -1) {
+                break;
+            }
+            sb.append(buf, 0, ret);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,165 @@
+package org.waveprotocol.box.server.imp;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.walkaround.proto.Diff.DocumentDiffSnapshot;
+import com.google.walkaround.proto.Diff.WaveletDiffSnapshot;
+import com.google.walkaround.proto.GoogleImport.GoogleDocument;
+import com.google.walkaround.proto.GoogleImport.GoogleDocumentContent;
+import com.google.walkaround.proto.GoogleImport.GoogleWavelet;
+import com.google.walkaround.proto.Walkaround.WalkaroundDocumentSnapshot;
+import com.google.walkaround.proto.Walkaround.WalkaroundWaveletSnapshot;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation;
+import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation.Component;
+
+/**
+ * Final state of a wavelet, imported by {@link WaveletImporter#importSnapshot}
+ * instead of its history. Built from any of the snapshot formats of Google
+ * Wave and walkaround.
+ *
+ * @author A. Kaplanov
+ */
+public final class WaveletSnapshot {
+
+    /** Content of a single document. */
+    public static final class Document {
+
+        private final String documentId;
+        private final String author;
+        private final ProtocolDocumentOperation content;
+
+        public Document(String documentId, String author, ProtocolDocumentOperation content) {
+            this.documentId = documentId;
+            this.author = author;
+            this.content = content;
+        }
+
+        public String getDocumentId() {
+            return documentId;
+        }
+
+        /** Last author of the document, or null if unknown. */
+        public String getAuthor() {
+            return author;
+        }
+
+        /** Document content as an operation on an empty document. */
+        public ProtocolDocumentOperation getContent() {
+            return content;
+        }
+    }
+
+    private final String creator;
+    private final List<String> participants;
+    private final List<Document> documents;
+
+    public WaveletSnapshot(String creator, List<String> participants, List<Document> documents) {
+        this.creator = creator;
+        this.participants = Collections.unmodifiableList(new ArrayList<String>(participants));
+        this.documents = Collections.unmodifiableList(new ArrayList<Document>(documents));
+    }
+
+    public String getCreator() {
+        return creator;
+    }
+
+    public List<String> getParticipants() {
+        return participants;
+    }
+
+    public List<Document> getDocuments() {
+        return documents;
+    }
+
+    /** Snapshot of a wavelet fetched from Google Wave. */
+    public static WaveletSnapshot of(GoogleWavelet wavelet, List<GoogleDocument> googleDocuments) {
+        List<Document> documents = new ArrayList<Document>();
+        for (GoogleDocument document : googleDocuments) {
+            if (document.hasContent()) {
+                documents.add(new Document(document.getDocumentId(),
+                        document.hasAuthor() ? document.getAuthor() : null, convert(document.getContent())));
+            }
+        }
+        return new WaveletSnapshot(wavelet.getCreator(), wavelet.getParticipantList(), documents);
+    }
+
+    /** Snapshot of a wavelet stored by walkaround. */
+    public static WaveletSnapshot of(WalkaroundWaveletSnapshot wavelet) throws InvalidProtocolBufferException {
+        List<Document> documents = new ArrayList<Document>();
+        for (WalkaroundDocumentSnapshot document : wavelet.getDocumentList()) {
+            if (document.hasContent()) {
+                documents.add(new Document(document.getDocumentId(),
+                        document.hasAuthor() ? document.getAuthor() : null, convert(document.getContent())));
+            }
+        }
+        return new WaveletSnapshot(wavelet.getCreator(), wavelet.getParticipantList(), documents);
+    }
+
+    /** Current state of a walkaround diff snapshot, the diff is ignored. */
+    public static WaveletSnapshot of(WaveletDiffSnapshot wavelet) throws InvalidProtocolBufferException {
+        List<Document> documents = new ArrayList<Document>();
+        for (DocumentDiffSnapshot document : wavelet.getDocumentList()) {
+            if (document.hasState()) {
+                documents.add(new Document(document.getDocumentId(),
+                        document.hasAuthor() ? document.getAuthor() : null, convert(document.getState())));
+            }
+        }
+        return new WaveletSnapshot(wavelet.getCreator(), wavelet.getParticipantList(), documents);
+    }
+
+    /**
+     * Converts a walkaround document operation, which has the same wire
+     * format as the federation one.
+     */
+    private static ProtocolDocumentOperation convert(
+            com.google.walkaround.proto.Proto.ProtocolDocumentOperation op) throws InvalidProtocolBufferException {
+        return ProtocolDocumentOperation.parseFrom(op.toByteString());
+    }
+
+    /** Converts Google Wave document content to an insertion operation. */
+    private static ProtocolDocumentOperation convert(GoogleDocumentContent content) {
+        ProtocolDocumentOperation.Builder op = ProtocolDocumentOperation.newBuilder();
+        for (GoogleDocumentContent.Component component : content.getComponentList()) {
+            Component.Builder new_component = Component.newBuilder();
+            if (component.hasAnnotationBoundary()) {
+                GoogleDocumentContent.AnnotationBoundary boundary = component.getAnnotationBoundary();
+                Component.AnnotationBoundary.Builder new_boundary = Component.AnnotationBoundary.newBuilder();
+                if (boundary.hasEmpty()) {
+                    new_boundary.setEmpty(boundary.getEmpty());
+                }
+                new_boundary.addAllEnd(boundary.getEndList());
+                for (GoogleDocumentContent.KeyValueUpdate change : boundary.getChangeList()) {
+                    Component.KeyValueUpdate.Builder new_change = Component.KeyValueUpdate.newBuilder()
+                            .setKey(change.getKey());
+                    if (change.hasOldValue()) {
+                        new_change.setOldValue(change.getOldValue());
+                    }
+                    if (change.hasNewValue()) {
+                        new_change.setNewValue(change.getNewValue());
+                    }
+                    new_boundary.addChange(new_change);
+                }
+                new_component.setAnnotationBoundary(new_boundary);
+            } else if (component.hasCharacters()) {
+                new_component.setCharacters(component.getCharacters());
+            } else if (component.hasElementStart()) {
+                GoogleDocumentContent.ElementStart element = component.getElementStart();
+                Component.ElementStart.Builder new_element = Component.ElementStart.newBuilder()
+                        .setType(element.getType());
+                for (GoogleDocumentContent.KeyValuePair attribute : element.getAttributeList()) {
+                    new_element.addAttribute(Component.KeyValuePair.newBuilder()
+                            .setKey(attribute.getKey()).setValue(attribute.getValue()));
+                }
+                new_component.setElementStart(new_element);
+            } else if (component.hasElementEnd()) {
+                new_component.setElementEnd(true);
+            } else {
+                continue;
+            }
+            op.addComponent(new_component);
+        }
+        return op.build();
+    }
+}